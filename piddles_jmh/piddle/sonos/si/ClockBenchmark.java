@@ -0,0 +1,54 @@
+package piddle.sonos.si;
+
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for reading the time from ZonedDateTime, the way the request
+ * loop used to, from a MonotonicClock and from a CachedClock.
+ * 
+ * @author Scott
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClockBenchmark {
+
+	private MonotonicClock monotonic = new MonotonicClock();
+	private CachedClock cached = new CachedClock();
+
+	@TearDown
+	public void tearDown() {
+		this.cached.shutDown();
+	}
+
+	@Benchmark
+	public long zoned() {
+		return ZonedDateTime.now().toInstant().toEpochMilli();
+	}
+
+	@Benchmark
+	public long monotonic() {
+		return this.monotonic.currentTimeMillis();
+	}
+
+	@Benchmark
+	public long cached() {
+		return this.cached.currentTimeMillis();
+	}
+}
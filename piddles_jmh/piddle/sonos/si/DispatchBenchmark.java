@@ -0,0 +1,161 @@
+package piddle.sonos.si;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the dispatch hot paths: QAManager.sellHydrant,
+ * QAManager.canSellHydrant, the batch calls QAManager.sellHydrants and
+ * QAManager.canSellHydrants, QATeamMember.runTest, and a whole sale the way a
+ * sender makes one, from creating the Request to ending it, once with a new
+ * Request per sale and once with a Request taken from and recycled into the
+ * thread's pool.
+ * 
+ * The QA team uses the Main defaults for the job length and the window. The
+ * batch benchmarks count each request in the batch as one operation, so that
+ * they line up against the single call benchmarks. The batch calls also end
+ * their requests, which the single calls leave to the caller.
+ * 
+ * Run them on several request threads with -t, and add -prof gc for the bytes
+ * allocated per operation (see build.gradle).
+ * 
+ * @author Scott
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+	static final int TIME_TO_COMPLETE_JOB_MILS = 50;
+	static final int TESTS_PER_WINDOW = 5;
+	static final int WINDOW_LENGTH = 600;
+
+	@Param({ "3", "100", "3000" })
+	public int teamSize;
+
+	private QAClock clock = MonotonicClock.getInstance();
+	private QAManager manager = null;
+	private ThreadSafeThreadPoolManager exec = null;
+	private QATeamMember[] team = null;
+
+	/**
+	 * The requests one benchmark thread hands to the code under test, so that
+	 * allocating them is not part of the measurement.
+	 */
+	@State(Scope.Thread)
+	public static class Requests {
+		Request req = new Request();
+		Request[] batch4 = newBatch(4);
+		Request[] batch32 = newBatch(32);
+		int x = 0;
+
+		private static Request[] newBatch(int size) {
+			Request[] batch = new Request[size];
+			for (int x = 0; x < size; x++) {
+				batch[x] = new Request();
+			}
+			return batch;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		this.manager = new QAManager(this.teamSize, 2, TIME_TO_COMPLETE_JOB_MILS,
+				TESTS_PER_WINDOW, WINDOW_LENGTH);
+
+		// runTest is measured on members of their own, outside any manager
+		this.exec = new ThreadSafeThreadPoolManager(2);
+		AvailabilityIndex index = new AvailabilityIndex();
+		this.team = new QATeamMember[this.teamSize];
+		for (int x = 0; x < this.teamSize; x++) {
+			this.team[x] = new QATeamMember(x, this.exec, index, TIME_TO_COMPLETE_JOB_MILS,
+					TESTS_PER_WINDOW, WINDOW_LENGTH);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.manager.shutDown();
+		this.exec.shutDown();
+	}
+
+	@Benchmark
+	public boolean sellHydrant(Requests reqs) {
+		return this.manager.sellHydrant(this.clock.currentTimeMillis(), reqs.req);
+	}
+
+	@Benchmark
+	public boolean canSellHydrant(Requests reqs) {
+		return this.manager.canSellHydrant(this.clock.currentTimeMillis(), reqs.req);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(4)
+	public int sellHydrants4(Requests reqs) {
+		return this.manager.sellHydrants(this.clock.currentTimeMillis(), reqs.batch4);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(32)
+	public int sellHydrants32(Requests reqs) {
+		return this.manager.sellHydrants(this.clock.currentTimeMillis(), reqs.batch32);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(4)
+	public int canSellHydrants4(Requests reqs) {
+		return this.manager.canSellHydrants(this.clock.currentTimeMillis(), reqs.batch4);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(32)
+	public int canSellHydrants32(Requests reqs) {
+		return this.manager.canSellHydrants(this.clock.currentTimeMillis(), reqs.batch32);
+	}
+
+	@Benchmark
+	public Request requestNew() {
+		Request req = new Request();
+		sell(this.manager, this.clock.currentTimeMillis(), req);
+		return req;
+	}
+
+	@Benchmark
+	public ResponseType requestPooled() {
+		Request req = Request.acquire();
+		sell(this.manager, this.clock.currentTimeMillis(), req);
+		ResponseType type = req.getResponse().getResponseType();
+		req.recycle();
+		return type;
+	}
+
+	@Benchmark
+	public boolean runTest(Requests reqs) {
+		return this.team[reqs.x++ % this.teamSize].runTest(this.clock.currentTimeMillis());
+	}
+
+	static void sell(QAManager manager, long curTime, Request req) {
+		if (manager.sellHydrant(curTime, req)) {
+			req.end(ResponseType.CONSUMED, curTime);
+		} else {
+			req.end(ResponseType.REJECTED, curTime);
+		}
+	}
+}
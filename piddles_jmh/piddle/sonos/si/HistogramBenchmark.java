@@ -0,0 +1,44 @@
+package piddle.sonos.si;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark for recording into a LatencyHistogram that every benchmark
+ * thread shares, as the request threads share MetricsRegistry's. The values
+ * fall into a couple of buckets, the way a run's latencies do, so threads
+ * that share counts contend for the same cache lines. Run it with -t to see
+ * the striping at work.
+ * 
+ * @author Scott
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistogramBenchmark {
+
+	private LatencyHistogram histogram = new LatencyHistogram();
+
+	@State(Scope.Thread)
+	public static class Values {
+		int x = 0;
+	}
+
+	@Benchmark
+	public void record(Values values) {
+		this.histogram.record(200 + (values.x++ & 15));
+	}
+}
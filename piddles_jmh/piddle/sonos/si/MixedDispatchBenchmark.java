@@ -0,0 +1,67 @@
+package piddle.sonos.si;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark for a sell/inquiry mix on a QAManager: one sellHydrant call
+ * per salesPerInquery calls, the rest canSellHydrant calls.
+ * 
+ * @author Scott
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MixedDispatchBenchmark {
+
+	@Param({ "3", "100", "3000" })
+	public int teamSize;
+
+	@Param({ "1", "5", "100" })
+	public int salesPerInquery;
+
+	private QAClock clock = MonotonicClock.getInstance();
+	private QAManager manager = null;
+
+	@State(Scope.Thread)
+	public static class Requests {
+		Request req = new Request();
+		int x = 0;
+	}
+
+	@Setup
+	public void setUp() {
+		this.manager = new QAManager(this.teamSize, 2, DispatchBenchmark.TIME_TO_COMPLETE_JOB_MILS,
+				DispatchBenchmark.TESTS_PER_WINDOW, DispatchBenchmark.WINDOW_LENGTH);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.manager.shutDown();
+	}
+
+	@Benchmark
+	public boolean mixed(Requests reqs) {
+		long curTime = this.clock.currentTimeMillis();
+		if (reqs.x++ % this.salesPerInquery == 0) {
+			return this.manager.sellHydrant(curTime, reqs.req);
+		}
+		return this.manager.canSellHydrant(curTime, reqs.req);
+	}
+}
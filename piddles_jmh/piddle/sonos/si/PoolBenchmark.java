@@ -0,0 +1,61 @@
+package piddle.sonos.si;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for handing an empty task to a ThreadSafeThreadPoolManager,
+ * with submit and with execute, in every ExecutorMode. Only the hand off is
+ * measured, not running the task.
+ * 
+ * @author Scott
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PoolBenchmark {
+
+	@Param
+	public ExecutorMode mode;
+
+	private ThreadSafeThreadPoolManager exec = null;
+	private Runnable task = () -> {
+	};
+
+	@Setup
+	public void setUp() {
+		this.exec = new ThreadSafeThreadPoolManager(2, this.mode);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.exec.shutDown();
+	}
+
+	@Benchmark
+	public Future<?> submit() throws Exception {
+		return this.exec.submit(this.task);
+	}
+
+	@Benchmark
+	public void execute() {
+		this.exec.execute(this.task);
+	}
+}
@@ -0,0 +1,70 @@
+package piddle.sonos.si;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark for the sell/inquiry mix of Main, one sale per five calls, on
+ * a ShardedQAManager. One shard is a QAManager behind the shard lookup, so
+ * shards = 1 against MixedDispatchBenchmark at salesPerInquery = 5 shows what
+ * the lookup costs.
+ * 
+ * @author Scott
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardedDispatchBenchmark {
+
+	@Param({ "3", "100", "3000" })
+	public int teamSize;
+
+	@Param({ "1", "2", "4" })
+	public int shards;
+
+	private QAClock clock = MonotonicClock.getInstance();
+	private ShardedQAManager sharded = null;
+
+	@State(Scope.Thread)
+	public static class Requests {
+		Request req = new Request();
+		int x = 0;
+	}
+
+	@Setup
+	public void setUp() {
+		this.sharded = new ShardedQAManager(this.teamSize, this.shards, 2, ExecutorMode.FIXED,
+				DispatchBenchmark.TIME_TO_COMPLETE_JOB_MILS, DispatchBenchmark.TESTS_PER_WINDOW,
+				DispatchBenchmark.WINDOW_LENGTH);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.sharded.shutDown();
+	}
+
+	@Benchmark
+	public boolean mixed(Requests reqs) {
+		long curTime = this.clock.currentTimeMillis();
+		if (reqs.x++ % 5 == 0) {
+			return this.sharded.sellHydrant(curTime, reqs.req);
+		}
+		return this.sharded.canSellHydrant(curTime, reqs.req);
+	}
+}
@@ -0,0 +1,274 @@
+package piddle.sonos.si;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A threadpool that sizes itself. Used by ExecutorMode.ADAPTIVE so that the QA
+ * team's pool does not have to be hand tuned to each machine.
+ * 
+ * A controller thread wakes every intervalMils and looks at three signals over
+ * the last interval:
+ * 
+ * @formatter:off
+ * 
+ * 				queue depth     -- tasks waiting for a pool thread.
+ * 
+ *                task wait       -- the mean time between a task being handed to the
+ *                                   pool and a thread starting it.
+ * 
+ *                completion lag  -- the mean time between a test's deadline and its
+ *                                   completion starting, from the TaskTimer that
+ *                                   schedules them (see setCompletionLagProbe),
+ *                                   less the timer's resolution. A timer wheel
+ *                                   with a 1 ms tick runs every task up to a tick
+ *                                   late however big the pool is, so only the lag
+ *                                   beyond that is the pool's.
+ * 
+ * @formatter:on
+ * 
+ * The pool grows by one thread when tasks queue up behind every thread or
+ * either time goes over waitTargetNanos. Completion lag only counts while
+ * every thread is busy: with a thread idle, a late completion was held up by
+ * the timer waking late, and another thread would not have started it any
+ * sooner. It shrinks by one thread once the
+ * queue has been empty, waits well under target and some thread idle for
+ * SHRINK_AFTER intervals in a row. The size always stays within minThreads
+ * and maxThreads.
+ * 
+ * Every change is recorded as a Decision along with the signals that caused
+ * it, so the choices can be printed and checked after a run.
+ * 
+ * @author Scott
+ *
+ */
+public class AdaptiveExecutor extends ThreadPoolExecutor {
+
+	private static final int SHRINK_AFTER = 3;
+	private static final int MAX_DECISIONS = 256;
+
+	private int minThreads = 0;
+	private int maxThreads = 0;
+	private long intervalMils = 0;
+	private long waitTargetNanos = 0;
+
+	private LongAdder startedTasks = new LongAdder();
+	private LongAdder totalWaitNanos = new LongAdder();
+	private volatile TaskTimer lagProbe = null;
+	private ArrayDeque<Decision> decisions = new ArrayDeque<Decision>();
+
+	private Thread controller = null;
+	private volatile boolean running = true;
+	private long lastStarted = 0;
+	private long lastWaitNanos = 0;
+	private long lastFired = 0;
+	private long lastJitterNanos = 0;
+	private int calmIntervals = 0;
+
+	/**
+	 * @param minThreads
+	 * @param maxThreads
+	 * @param initialThreads
+	 * @param intervalMils
+	 *            how often the controller looks at the pool
+	 * @param waitTargetNanos
+	 *            the task wait and completion lag the controller aims to stay
+	 *            under
+	 */
+	public AdaptiveExecutor(int minThreads, int maxThreads, int initialThreads, long intervalMils,
+			long waitTargetNanos) {
+		super(Math.max(minThreads, Math.min(initialThreads, maxThreads)), maxThreads, 1,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		this.minThreads = minThreads;
+		this.maxThreads = maxThreads;
+		this.intervalMils = intervalMils;
+		this.waitTargetNanos = waitTargetNanos;
+
+		this.controller = new Thread(this::control, "qa-pool-controller");
+		this.controller.setDaemon(true);
+		this.controller.start();
+	}
+
+	/**
+	 * @param timer
+	 *            the timer whose jitter is the completion lag of the tasks it hands
+	 *            to this pool. null for none
+	 */
+	public void setCompletionLagProbe(TaskTimer timer) {
+		this.lagProbe = timer;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		super.execute(new TimedTask(task));
+	}
+
+	@Override
+	public void shutdown() {
+		stopController();
+		super.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		stopController();
+		return super.shutdownNow();
+	}
+
+	/**
+	 * Every change the controller made, oldest first. Only the latest
+	 * MAX_DECISIONS are kept.
+	 * 
+	 * @return
+	 */
+	public synchronized List<Decision> getDecisions() {
+		return new ArrayList<Decision>(this.decisions);
+	}
+
+	private void stopController() {
+		this.running = false;
+		LockSupport.unpark(this.controller);
+	}
+
+	private void control() {
+		while (this.running) {
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(this.intervalMils));
+			if (this.running) {
+				adjust();
+			}
+		}
+	}
+
+	/**
+	 * One look at the pool. Only ever called from the controller thread.
+	 */
+	private void adjust() {
+		long started = this.startedTasks.sum();
+		long waitNanos = this.totalWaitNanos.sum();
+		long meanWaitNanos = started == this.lastStarted ? 0
+				: (waitNanos - this.lastWaitNanos) / (started - this.lastStarted);
+		this.lastStarted = started;
+		this.lastWaitNanos = waitNanos;
+
+		long lagNanos = 0;
+		TaskTimer probe = this.lagProbe;
+		if (probe != null) {
+			long fired = probe.getFiredCount();
+			long jitterNanos = probe.getMeanJitterNanos() * fired;
+			lagNanos = fired == this.lastFired ? 0
+					: Math.max(0, (jitterNanos - this.lastJitterNanos) / (fired - this.lastFired)
+							- probe.getResolutionNanos());
+			this.lastFired = fired;
+			this.lastJitterNanos = jitterNanos;
+		}
+
+		int size = getCorePoolSize();
+		int depth = getQueue().size();
+		boolean saturated = getActiveCount() >= size;
+
+		if (size < this.maxThreads && (depth > size || meanWaitNanos > this.waitTargetNanos
+				|| (saturated && lagNanos > this.waitTargetNanos))) {
+			String reason = depth > size ? "queue depth"
+					: meanWaitNanos > this.waitTargetNanos ? "task wait" : "completion lag";
+			resize(size, size + 1, reason, depth, meanWaitNanos, lagNanos);
+			this.calmIntervals = 0;
+		} else if (size > this.minThreads && depth == 0
+				&& meanWaitNanos < this.waitTargetNanos / 4 && lagNanos < this.waitTargetNanos / 4
+				&& !saturated) {
+			if (++this.calmIntervals >= SHRINK_AFTER) {
+				resize(size, size - 1, "idle", depth, meanWaitNanos, lagNanos);
+				this.calmIntervals = 0;
+			}
+		} else {
+			this.calmIntervals = 0;
+		}
+	}
+
+	private void resize(int from, int to, String reason, int depth, long meanWaitNanos,
+			long lagNanos) {
+		setCorePoolSize(to);
+		synchronized (this) {
+			if (this.decisions.size() == MAX_DECISIONS) {
+				this.decisions.poll();
+			}
+			this.decisions.add(new Decision(MonotonicClock.getInstance().currentTimeMillis(), from,
+					to, reason, depth, meanWaitNanos, lagNanos));
+		}
+	}
+
+	/**
+	 * Remembers when a task was handed to the pool so that its wait can be
+	 * recorded when it starts.
+	 */
+	private class TimedTask implements Runnable {
+		private Runnable task;
+		private long submitNanos;
+
+		TimedTask(Runnable task) {
+			this.task = task;
+			this.submitNanos = System.nanoTime();
+		}
+
+		@Override
+		public void run() {
+			totalWaitNanos.add(System.nanoTime() - this.submitNanos);
+			startedTasks.increment();
+			this.task.run();
+		}
+	}
+
+	/**
+	 * One change of the pool size and the signals behind it.
+	 */
+	public static class Decision {
+		private long time;
+		private int fromThreads;
+		private int toThreads;
+		private String reason;
+		private int queueDepth;
+		private long meanWaitNanos;
+		private long lagNanos;
+
+		private Decision(long time, int fromThreads, int toThreads, String reason, int queueDepth,
+				long meanWaitNanos, long lagNanos) {
+			this.time = time;
+			this.fromThreads = fromThreads;
+			this.toThreads = toThreads;
+			this.reason = reason;
+			this.queueDepth = queueDepth;
+			this.meanWaitNanos = meanWaitNanos;
+			this.lagNanos = lagNanos;
+		}
+
+		public long getTime() {
+			return this.time;
+		}
+
+		public int getFromThreads() {
+			return this.fromThreads;
+		}
+
+		public int getToThreads() {
+			return this.toThreads;
+		}
+
+		public String getReason() {
+			return this.reason;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%s: %s -> %s threads (%s; queue depth %s, task wait %s ns, completion lag %s ns)",
+					String.valueOf(this.time), String.valueOf(this.fromThreads),
+					String.valueOf(this.toThreads), this.reason, String.valueOf(this.queueDepth),
+					String.valueOf(this.meanWaitNanos), String.valueOf(this.lagNanos));
+		}
+	}
+}
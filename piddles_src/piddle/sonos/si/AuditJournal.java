@@ -0,0 +1,358 @@
+package piddle.sonos.si;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An append-only, memory mapped journal of request lifecycle events, for
+ * auditing and for harvesting click-through data after a run.
+ * 
+ * Every Request created with a journal writes a CREATED record when it is
+ * created and an ENDED or ERROR record when it is answered. A record is a fixed
+ * 24 bytes:
+ * 
+ * @formatter:off
+ * 
+ * 				 0 long  request id
+ *                 8 long  time (epoch milliseconds)
+ *                16 int   QA team member index, -1 if none
+ *                20 byte  event (1 CREATED, 2 ENDED, 3 ERROR), 0 marks unused space
+ *                21 byte  ResponseType ordinal, -1 if none
+ *                22 short padding
+ * 
+ * @formatter:on
+ * 
+ * The journal is a directory of segment files of segmentSize bytes, each mapped
+ * into memory. Writers never lock and never make a system call: a thread
+ * claims space from the current segment with one atomic add and then fills it
+ * in with plain stores to the mapped memory. A thread's first SHARED_RECORDS
+ * records are claimed one at a time. Only a thread that keeps writing after
+ * that claims a block of RECORDS_PER_BLOCK records at a time, so the many
+ * short lived threads of a virtual or cached request pool, which write a
+ * record or two and exit, share the segment's counter rather than each leaving
+ * most of a block empty behind it. When a segment has no room left for a
+ * claim, the thread that notices rolls over to a new segment. That is the only
+ * place a lock is taken, once per segment. Space left over at the end of a
+ * block is zero, which readers skip.
+ * 
+ * close unmaps the segments, and a store to an unmapped segment crashes the
+ * JVM rather than throwing. So every write runs between raising and lowering
+ * the writing flag of its thread's Block, and checks closed only once the flag
+ * is up. close sets closed first and then waits for every Block's flag to be
+ * down before it unmaps anything. Both are volatile, so either the writer sees
+ * closed and throws, or close sees the writer and waits for it. The flag
+ * belongs to the writing thread alone, so it costs a write no shared cache
+ * line. Blocks are tracked weakly, so that a thread's Block goes once the
+ * thread does.
+ * 
+ * scan maps a finished segment read only and walks its records in place, so
+ * offline queries read at memory speed without copying the segment.
+ * 
+ * @author Scott
+ *
+ */
+public class AuditJournal {
+
+	public static final byte CREATED = 1;
+	public static final byte ENDED = 2;
+	public static final byte ERROR = 3;
+
+	public static final int RECORD_SIZE = 24;
+	private static final int RECORDS_PER_BLOCK = 256;
+	private static final int BLOCK_SIZE = RECORD_SIZE * RECORDS_PER_BLOCK;
+	private static final int SHARED_RECORDS = 16;
+
+	private Path dir = null;
+	private int segmentSize = 0;
+	private volatile Segment current = null;
+	private List<Segment> segments = new ArrayList<Segment>();
+	private volatile boolean closed = false;
+	private AtomicLong nextRequestId = new AtomicLong(0);
+	private ThreadLocal<Block> blocks = ThreadLocal.withInitial(this::newBlock);
+	private Map<Block, Boolean> writers = new WeakHashMap<Block, Boolean>();
+
+	/**
+	 * Called once per record by scan.
+	 */
+	public interface RecordVisitor {
+		public void visit(long requestId, byte event, long time, int worker, ResponseType type);
+	}
+
+	/**
+	 * @param dir
+	 *            where the segment files go. Created if missing
+	 * @param segmentSize
+	 *            the size of one segment file in bytes. Rounded down to a whole
+	 *            number of blocks
+	 * @throws IOException
+	 */
+	public AuditJournal(Path dir, int segmentSize) throws IOException {
+		this.dir = dir;
+		this.segmentSize = Math.max(1, segmentSize / BLOCK_SIZE) * BLOCK_SIZE;
+		Files.createDirectories(dir);
+
+		// append after whatever earlier runs left in dir
+		List<Path> existing = listSegments(dir);
+		int first = 0;
+		if (!existing.isEmpty()) {
+			String name = existing.get(existing.size() - 1).getFileName().toString();
+			first = Integer.parseInt(name.substring("audit-".length(), name.length() - ".log".length())) + 1;
+		}
+		this.current = openSegment(first);
+	}
+
+	public long nextRequestId() {
+		return this.nextRequestId.getAndIncrement();
+	}
+
+	public void recordCreated(long requestId, long time) {
+		write(requestId, CREATED, time, -1, null);
+	}
+
+	public void recordEnded(long requestId, long time, ResponseType type, int worker) {
+		write(requestId, ENDED, time, worker, type);
+	}
+
+	public void recordError(long requestId, long time) {
+		write(requestId, ERROR, time, -1, ResponseType.ERROR);
+	}
+
+	/**
+	 * Flushes every segment to disk and unmaps it, once the writes already under
+	 * way have finished. Writes that start afterwards throw
+	 * IllegalStateException. The monitor is not held while waiting, since a
+	 * write under way may need it to roll over to a new segment.
+	 */
+	public void close() {
+		List<Block> blocks;
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			blocks = new ArrayList<Block>(this.writers.keySet());
+		}
+		for (Block block : blocks) {
+			while (block.writing) {
+				Thread.yield();
+			}
+		}
+		synchronized (this) {
+			for (Segment segment : this.segments) {
+				segment.buffer.force();
+				unmap(segment.buffer);
+			}
+			this.segments.clear();
+		}
+	}
+
+	/**
+	 * The segment files written so far, oldest first.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public List<Path> getSegments() throws IOException {
+		return listSegments(this.dir);
+	}
+
+	/**
+	 * The segment files in dir, oldest first.
+	 * 
+	 * @param dir
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Path> listSegments(Path dir) throws IOException {
+		List<Path> paths = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "audit-*.log")) {
+			stream.forEach(paths::add);
+		}
+		paths.sort(null);
+		return paths;
+	}
+
+	/**
+	 * Walks every record of a segment in place and returns how many there were.
+	 * The segment is unmapped again before scan returns.
+	 * 
+	 * @param segment
+	 * @param visitor
+	 * @return
+	 * @throws IOException
+	 */
+	public static long scan(Path segment, RecordVisitor visitor) throws IOException {
+		ResponseType[] types = ResponseType.values();
+		long count = 0;
+
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int limit = buffer.limit() - RECORD_SIZE;
+			for (int pos = 0; pos <= limit; pos += RECORD_SIZE) {
+				byte event = buffer.get(pos + 20);
+				if (event == 0) {
+					continue;
+				}
+				byte type = buffer.get(pos + 21);
+				visitor.visit(buffer.getLong(pos), event, buffer.getLong(pos + 8),
+						buffer.getInt(pos + 16), type < 0 ? null : types[type]);
+				count++;
+			}
+			unmap(buffer);
+		}
+		return count;
+	}
+
+	private void write(long requestId, byte event, long time, int worker, ResponseType type) {
+		Block block = this.blocks.get();
+		block.writing = true;
+		try {
+			if (this.closed) {
+				throw new IllegalStateException("The audit journal is closed");
+			}
+			append(block, requestId, event, time, worker, type);
+		} finally {
+			block.writing = false;
+		}
+	}
+
+	private void append(Block block, long requestId, byte event, long time, int worker,
+			ResponseType type) {
+		if (block.pos == block.end) {
+			if (block.sharedClaims < SHARED_RECORDS) {
+				block.sharedClaims++;
+				claim(block, RECORD_SIZE);
+			} else {
+				claim(block, BLOCK_SIZE);
+			}
+		}
+
+		MappedByteBuffer buffer = block.segment.buffer;
+		int pos = block.pos;
+		buffer.putLong(pos, requestId);
+		buffer.putLong(pos + 8, time);
+		buffer.putInt(pos + 16, worker);
+		buffer.put(pos + 21, type == null ? (byte) -1 : (byte) type.ordinal());
+		// the event byte goes last so that a reader never sees half a record as used
+		buffer.put(pos + 20, event);
+		block.pos += RECORD_SIZE;
+	}
+
+	/**
+	 * Claims size bytes, a single record or a whole block, from the current
+	 * segment for block. Both are whole records and a segment is a whole number
+	 * of blocks, so records never straddle a claim.
+	 * 
+	 * @param block
+	 * @param size
+	 */
+	private void claim(Block block, int size) {
+		while (true) {
+			Segment segment = this.current;
+			long start = segment.claimed.getAndAdd(size);
+			if (start + size <= this.segmentSize) {
+				block.segment = segment;
+				block.pos = (int) start;
+				block.end = (int) start + size;
+				return;
+			}
+			roll(segment);
+		}
+	}
+
+	/**
+	 * Replaces full with a new segment, unless another thread already did.
+	 * 
+	 * @param full
+	 */
+	private synchronized void roll(Segment full) {
+		if (this.current == full) {
+			this.current = openSegment(full.number + 1);
+		}
+	}
+
+	/**
+	 * A new thread's Block, registered so that close can wait for its writes.
+	 * 
+	 * @return
+	 */
+	private synchronized Block newBlock() {
+		Block block = new Block();
+		this.writers.put(block, Boolean.TRUE);
+		return block;
+	}
+
+	private synchronized Segment openSegment(int number) {
+		Path path = this.dir.resolve(String.format("audit-%06d.log", number));
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// the mapping stays valid after the channel is closed
+			Segment segment = new Segment(number,
+					channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize));
+			this.segments.add(segment);
+			return segment;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Unmaps buffer now rather than whenever the garbage collector gets to it,
+	 * which for a long lived journal is never: every thread's Block still points
+	 * at its last segment. There is no public API for this before the FFM API,
+	 * so it goes through sun.misc.Unsafe, and if that is missing the buffer is
+	 * left to the collector.
+	 * 
+	 * @param buffer
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null),
+					buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			System.out.println(String.format(
+					"Warning: could not unmap an audit segment (%s). It stays mapped until it is garbage collected.",
+					e));
+		}
+	}
+
+	private static class Segment {
+		private int number;
+		private MappedByteBuffer buffer;
+		private AtomicLong claimed = new AtomicLong(0);
+
+		Segment(int number, MappedByteBuffer buffer) {
+			this.number = number;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * The part of a segment one thread is currently filling in, how many single
+	 * records the thread has claimed, and whether it is writing a record right
+	 * now.
+	 */
+	private static class Block {
+		private Segment segment;
+		private int pos = 0;
+		private int end = 0;
+		private int sharedClaims = 0;
+		private volatile boolean writing = false;
+	}
+}
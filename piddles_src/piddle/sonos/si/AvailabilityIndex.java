@@ -0,0 +1,506 @@
+package piddle.sonos.si;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * The availability index tracks which QA team members can take a test without
+ * the QAManager having to ask every member on every request.
+ * 
+ * Members live in one of three places:
+ * 
+ * @formatter:off
+ * 
+ * 				idle    -- members that are free and off break, in the order the
+ *                         SelectionPolicy hands them out. A lock free FIFO queue
+ *                         for FIFO, the default, and a lock free skip list ordered
+ *                         by rank for the rest. Dispatch polls from the head.
+ * 
+ *                onBreak -- a lock free skip list of free members that filled up
+ *                           their window, ordered by the time their break ends.
+ * 
+ *                busy    -- a lock free skip list of members that are currently
+ *                           testing, ordered by the time they are due to be free
+ *                           and off break again. The member files itself here when
+ *                           it starts a test, and moves itself back to idle or
+ *                           onBreak when the test completes.
+ * 
+ * @formatter:on
+ * 
+ * A member only ever starts a break by taking a test, so a member in the idle
+ * queue stays off break until it is polled. Breaks end with the passing of
+ * time rather than an event, so members whose break has expired are moved
+ * back to the idle queue lazily, at the start of each dispatch call. Both a
+ * successful dispatch and a rejection therefore cost the same no matter how
+ * big the team is.
+ * 
+ * A ranked policy may rank a member by its window, which changes while the
+ * member is idle as the slots of its old tests expire. Such a member is filed
+ * a second time in rerank, under the millisecond its rank stops holding, and
+ * is re-ranked lazily in the same way once that time has passed: the thread
+ * that wins its rerank key takes its ranked key out and files it again as of
+ * curTime. A poll therefore never hands out a member by a budget that has
+ * since come back.
+ * 
+ * Inquiries do not need a member, only to know whether one is free, so the
+ * index also publishes an Availability snapshot after every change: the
+ * earliest instant some member is free and off break, and that member. An
+ * idle member is available from Long.MIN_VALUE, and a free member on break
+ * from the millisecond after its break ends, so the passing of time alone
+ * never makes the snapshot stale. Each change takes a version number after it
+ * is made, and a snapshot only replaces one with a lower version, so the
+ * snapshot left standing always reflects the latest change.
+ * 
+ * The snapshot also carries a forecast for callers that were turned away: the
+ * earliest instant some member, busy or not, is due to be free and off break.
+ * It is the head of idle, onBreak or busy, so it is kept up to date by the
+ * same changes as the rest of the snapshot rather than worked out per call.
+ * 
+ * The busy members, the members on break, and the idle members of a ranked
+ * policy, are sets of MemberKeys that carry the member, rather than maps from
+ * key to member, because reading the first entry of a skip list map allocates
+ * an entry object, and a rejected sale must not allocate. The first key is read with
+ * ceiling of a key that sorts before every other.
+ * 
+ * Retired members are never put back into the index. A member that is
+ * retired while it sits in the index is taken out by remove.
+ * 
+ * A listener can be told whenever a member finishes a test, which is how the
+ * QAManager hands a freed member straight to a waiting sale.
+ * 
+ * Note: a member must only be tested after being polled from the index. A
+ * member that is tested behind the index's back would still be sitting in the
+ * idle queue while busy.
+ * 
+ * @author Scott
+ *
+ */
+public class AvailabilityIndex {
+
+	private static final MemberKey FIRST = new MemberKey(Long.MIN_VALUE, Integer.MIN_VALUE, null);
+
+	private volatile SelectionPolicy policy = SelectionPolicy.FIFO;
+	private ConcurrentLinkedQueue<QATeamMember> idle = new ConcurrentLinkedQueue<QATeamMember>();
+	private ConcurrentSkipListSet<MemberKey> ranked = new ConcurrentSkipListSet<MemberKey>();
+	private ConcurrentSkipListSet<MemberKey> rerank = new ConcurrentSkipListSet<MemberKey>();
+	private ConcurrentSkipListSet<MemberKey> onBreak = new ConcurrentSkipListSet<MemberKey>();
+	private ConcurrentSkipListSet<MemberKey> busy = new ConcurrentSkipListSet<MemberKey>();
+	private volatile Consumer<QATeamMember> completionListener = null;
+	private AtomicLong version = new AtomicLong(0);
+	private AtomicReference<Availability> availability = new AtomicReference<Availability>(
+			new Availability(0, Long.MAX_VALUE, Long.MAX_VALUE, null));
+
+	/**
+	 * Puts a free member back into the index. Called when a member is added to
+	 * the team, when its test completes, and by the QAManager when a polled
+	 * member turned out to be on break.
+	 * 
+	 * @param member
+	 */
+	public void release(QATeamMember member) {
+		if (member.isRetired()) {
+			return;
+		}
+		long breakEnd = member.getBreakEnd();
+		if (breakEnd == Long.MIN_VALUE) {
+			addIdle(member, this.policy == SelectionPolicy.FIFO ? 0 : member.currentTimeMillis());
+		} else {
+			// breakEnd may already be in the past once the window has wrapped, and the
+			// next dispatch call then moves the member straight on to idle
+			this.onBreak.add(new MemberKey(breakEnd, member.getId(), member));
+		}
+		// the member may have been retired while it was being added, after remove
+		// had already looked for it
+		if (member.isRetired()) {
+			remove(member);
+			return;
+		}
+		publish();
+	}
+
+	/**
+	 * Takes a retired member out of the index, wherever it is. A member that is
+	 * testing is taken out of busy, and release drops it when its test completes.
+	 * 
+	 * @param member
+	 */
+	public void remove(QATeamMember member) {
+		boolean removed = this.idle.remove(member)
+				| this.ranked.removeIf(key -> key.member == member)
+				| this.rerank.removeIf(key -> key.member == member)
+				| this.busy.remove(new MemberKey(member.getFreeAt(), member.getId(), member));
+		long breakEnd = member.getBreakEnd();
+		if (breakEnd != Long.MIN_VALUE) {
+			removed |= this.onBreak.remove(new MemberKey(breakEnd, member.getId(), member));
+		}
+		if (removed) {
+			publish();
+		}
+	}
+
+	/**
+	 * Files a member that was just handed a test as busy until its freeAt. Called
+	 * by the member before its test is scheduled, so it is always in place before
+	 * releaseCompleted takes it out.
+	 * 
+	 * @param member
+	 */
+	public void testStarted(QATeamMember member) {
+		this.busy.add(new MemberKey(member.getFreeAt(), member.getId(), member));
+		publish();
+	}
+
+	/**
+	 * Puts a member that just finished a test back into the index and then tells
+	 * the completion listener, if there is one.
+	 * 
+	 * @param member
+	 */
+	public void releaseCompleted(QATeamMember member) {
+		this.busy.remove(new MemberKey(member.getFreeAt(), member.getId(), member));
+		release(member);
+		Consumer<QATeamMember> listener = this.completionListener;
+		if (listener != null) {
+			listener.accept(member);
+		}
+	}
+
+	/**
+	 * @param listener
+	 *            called with every member that finishes a test, after it is back
+	 *            in the index. null for none
+	 */
+	public void setCompletionListener(Consumer<QATeamMember> listener) {
+		this.completionListener = listener;
+	}
+
+	/**
+	 * Changes the order idle members are handed out in. The members already idle
+	 * are moved over, but a dispatch running at the same time could miss one, so
+	 * set it before the team takes requests.
+	 * 
+	 * @param policy
+	 * @param curTime
+	 */
+	public synchronized void setSelectionPolicy(SelectionPolicy policy, long curTime) {
+		if (policy == this.policy) {
+			return;
+		}
+		ArrayList<QATeamMember> members = new ArrayList<QATeamMember>();
+		QATeamMember member;
+		while ((member = pollIdleMember()) != null) {
+			members.add(member);
+		}
+		this.policy = policy;
+		for (QATeamMember m : members) {
+			addIdle(m, curTime);
+		}
+		publish();
+	}
+
+	public SelectionPolicy getSelectionPolicy() {
+		return this.policy;
+	}
+
+	/**
+	 * The latest published availability. One volatile read, no locks and no
+	 * allocation, so inquiries can call it as often as they like.
+	 * 
+	 * @return
+	 */
+	public Availability getAvailability() {
+		return this.availability.get();
+	}
+
+	/**
+	 * Returns a member that is free and off break at curTime without removing it
+	 * from the index, or null if there is none.
+	 * 
+	 * @param curTime
+	 * @return
+	 */
+	public QATeamMember peekIdle(long curTime) {
+		endExpiredBreaks(curTime);
+		rerankIdle(curTime);
+		return peekIdleMember();
+	}
+
+	/**
+	 * The number of members that are free and off break at curTime. Walks the
+	 * idle queue, so it costs one step per idle member.
+	 * 
+	 * @param curTime
+	 * @return
+	 */
+	public int countIdle(long curTime) {
+		endExpiredBreaks(curTime);
+		rerankIdle(curTime);
+		return this.policy == SelectionPolicy.FIFO ? this.idle.size() : this.ranked.size();
+	}
+
+	/**
+	 * Removes and returns a member that is free and off break at curTime, or null
+	 * if there is none. The caller owns the member until it hands it to runTest or
+	 * back to release.
+	 * 
+	 * @param curTime
+	 * @return
+	 */
+	public QATeamMember pollIdle(long curTime) {
+		endExpiredBreaks(curTime);
+		rerankIdle(curTime);
+		QATeamMember member = pollIdleMember();
+		if (member != null) {
+			publish();
+		}
+		return member;
+	}
+
+	/**
+	 * Removes up to max members that are free and off break at curTime into
+	 * members and returns how many there were. Expired breaks are ended once for
+	 * the whole batch. The caller owns the members as with pollIdle.
+	 * 
+	 * @param curTime
+	 * @param members
+	 * @param max
+	 * @return
+	 */
+	public int pollIdle(long curTime, QATeamMember[] members, int max) {
+		endExpiredBreaks(curTime);
+		rerankIdle(curTime);
+		int count = 0;
+		QATeamMember member;
+		while (count < max && (member = pollIdleMember()) != null) {
+			members[count++] = member;
+		}
+		if (count != 0) {
+			publish();
+		}
+		return count;
+	}
+
+	/**
+	 * Moves every member whose break ended before curTime to the idle queue. Only
+	 * the thread that wins the remove moves the member, so a member is never
+	 * queued twice.
+	 * 
+	 * @param curTime
+	 */
+	private void endExpiredBreaks(long curTime) {
+		MemberKey key;
+		boolean moved = false;
+		while ((key = this.onBreak.ceiling(FIRST)) != null && curTime > key.rank) {
+			if (this.onBreak.remove(key)) {
+				key.member.breakEnded(curTime);
+				addIdle(key.member, curTime);
+				moved = true;
+			}
+		}
+		if (moved) {
+			publish();
+		}
+	}
+
+	/**
+	 * Files again, as of curTime, every idle member whose rank stopped holding
+	 * before curTime. Only the thread that wins the rerank key re-ranks the
+	 * member, and only if the member was not polled in the meantime.
+	 * 
+	 * @param curTime
+	 */
+	private void rerankIdle(long curTime) {
+		MemberKey key;
+		boolean moved = false;
+		while ((key = this.rerank.ceiling(FIRST)) != null && curTime > key.rank) {
+			if (this.rerank.remove(key) && this.ranked.remove(key.twin)) {
+				addIdle(key.member, curTime);
+				moved = true;
+			}
+		}
+		if (moved) {
+			publish();
+		}
+	}
+
+	/**
+	 * Files a free, off break member under the current policy, ranked as of
+	 * curTime, and in rerank if that rank changes while the member is idle.
+	 * 
+	 * @param member
+	 * @param curTime
+	 */
+	private void addIdle(QATeamMember member, long curTime) {
+		SelectionPolicy policy = this.policy;
+		if (policy == SelectionPolicy.FIFO) {
+			this.idle.add(member);
+		} else {
+			MemberKey key = new MemberKey(policy.rank(member, curTime), member.getId(), member);
+			long changesAt = policy.rankChangesAt(member, curTime);
+			if (changesAt != Long.MAX_VALUE) {
+				key.twin = new MemberKey(changesAt, member.getId(), member);
+				key.twin.twin = key;
+			}
+			// ranked first: a rerank key whose twin was polled already is skipped,
+			// but one whose twin is not filed yet would be lost
+			this.ranked.add(key);
+			if (key.twin != null) {
+				this.rerank.add(key.twin);
+			}
+		}
+	}
+
+	/**
+	 * Removes and returns the idle member the policy picks, or null. Only the
+	 * thread that wins the remove gets the member.
+	 * 
+	 * @return
+	 */
+	private QATeamMember pollIdleMember() {
+		if (this.policy == SelectionPolicy.FIFO) {
+			return this.idle.poll();
+		}
+		MemberKey key;
+		while ((key = this.ranked.ceiling(FIRST)) != null) {
+			if (this.ranked.remove(key)) {
+				if (key.twin != null) {
+					this.rerank.remove(key.twin);
+				}
+				return key.member;
+			}
+		}
+		return null;
+	}
+
+	private QATeamMember peekIdleMember() {
+		if (this.policy == SelectionPolicy.FIFO) {
+			return this.idle.peek();
+		}
+		MemberKey key = this.ranked.ceiling(FIRST);
+		return key == null ? null : key.member;
+	}
+
+	/**
+	 * Publishes the availability as of now. Called after every change to the
+	 * index.
+	 */
+	private void publish() {
+		long version = this.version.incrementAndGet();
+
+		Availability next;
+		QATeamMember member = peekIdleMember();
+		if (member != null) {
+			next = new Availability(version, Long.MIN_VALUE, Long.MIN_VALUE, member);
+		} else {
+			MemberKey key = this.onBreak.ceiling(FIRST);
+			MemberKey busyKey = this.busy.ceiling(FIRST);
+			long availableFrom = key == null ? Long.MAX_VALUE : key.rank + 1;
+			long forecast = busyKey == null ? availableFrom
+					: Math.min(availableFrom, busyKey.rank);
+			next = new Availability(version, availableFrom, forecast,
+					key == null ? null : key.member);
+		}
+
+		Availability cur;
+		while ((cur = this.availability.get()).version < version) {
+			if (this.availability.compareAndSet(cur, next)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The earliest instant some member is free and off break, and that member.
+	 * Busy members are not counted: they are back in the index, and in a new
+	 * snapshot, once their test completes. They are only counted in the
+	 * forecast.
+	 */
+	public static class Availability {
+		private long version;
+		private long availableFrom;
+		private long forecast;
+		private QATeamMember member;
+
+		private Availability(long version, long availableFrom, long forecast,
+				QATeamMember member) {
+			this.version = version;
+			this.availableFrom = availableFrom;
+			this.forecast = forecast;
+			this.member = member;
+		}
+
+		/**
+		 * Returns true if the member is free and off break at curTime.
+		 * 
+		 * @param curTime
+		 * @return
+		 */
+		public boolean isAvailable(long curTime) {
+			return curTime >= this.availableFrom;
+		}
+
+		/**
+		 * The first millisecond the member is free and off break. Long.MIN_VALUE
+		 * if it already is, Long.MAX_VALUE if every member is busy.
+		 * 
+		 * @return
+		 */
+		public long getAvailableFrom() {
+			return this.availableFrom;
+		}
+
+		/**
+		 * The first millisecond some member, busy or not, is due to be free and off
+		 * break. Long.MIN_VALUE if one already is, Long.MAX_VALUE if the team is
+		 * empty. A busy member is due when its test is scheduled to complete, and
+		 * the timer can run that a little late, so a caller that comes back at the
+		 * forecast may still find everybody busy.
+		 * 
+		 * @return
+		 */
+		public long getForecast() {
+			return this.forecast;
+		}
+
+		/**
+		 * The member, or null if every member is busy.
+		 * 
+		 * @return
+		 */
+		public QATeamMember getMember() {
+			return this.member;
+		}
+	}
+
+	/**
+	 * A member in a skip list, ordered by rank: its freeAt for a busy member, the
+	 * end of its break for a member on break, its SelectionPolicy rank for an idle
+	 * member. The member id breaks
+	 * ties so that two members of the same rank do not collide.
+	 * 
+	 * An idle member that will need re-ranking has two keys, its ranked key and
+	 * its rerank key, and each points at the other as its twin.
+	 */
+	private static class MemberKey implements Comparable<MemberKey> {
+		private long rank;
+		private int id;
+		private QATeamMember member;
+		private MemberKey twin = null;
+
+		MemberKey(long rank, int id, QATeamMember member) {
+			this.rank = rank;
+			this.id = id;
+			this.member = member;
+		}
+
+		@Override
+		public int compareTo(MemberKey key) {
+			int cmp = Long.compare(this.rank, key.rank);
+			return cmp != 0 ? cmp : Integer.compare(this.id, key.id);
+		}
+	}
+}
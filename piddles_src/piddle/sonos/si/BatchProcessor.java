@@ -0,0 +1,201 @@
+package piddle.sonos.si;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Groups a stream into lists of up to maxSize items, publishing a list once it
+ * is full or once maxDelayMils have passed since its first item, whichever
+ * comes first.
+ * 
+ * Placed after a QATeamProcessor it turns answered sales into batches, so that
+ * a consumer such as a log or a metrics sink pays its per call cost once per
+ * batch rather than once per sale, and the delay bounds how stale a batch can
+ * get when sales are slow.
+ * 
+ * The processor asks upstream for maxSize items up front and for one more item
+ * per item it publishes, so at most maxSize items are collected at once.
+ * Publishing a batch blocks while the subscriber's buffer is full, which holds
+ * back demand upstream in turn.
+ * 
+ * A batch is handed over under the monitor, into a queue of ready batches, and
+ * published outside it. Whichever thread finds nobody else publishing, the
+ * upstream thread or a timer's pool thread, publishes every ready batch in
+ * order, and the rest leave theirs in the queue and return. So a publish that
+ * blocks on a full buffer holds no lock, and only ever holds up the one thread
+ * doing it: the items keep being collected and the timers keep flushing in the
+ * meantime. Completion and errors are passed on after the last ready batch.
+ * 
+ * @author Scott
+ * 
+ * @param <T>
+ */
+public class BatchProcessor<T> extends SubmissionPublisher<List<T>>
+		implements Flow.Processor<T, List<T>> {
+
+	private TaskTimer timer = null;
+	private int maxSize = 0;
+	private long maxDelayMils = 0;
+	private Flow.Subscription subscription = null;
+	private List<T> batch = null;
+	private long batchSeq = 0;
+	private ArrayDeque<List<T>> ready = new ArrayDeque<List<T>>();
+	private boolean done = false;
+	private Throwable error = null;
+	private AtomicInteger publishers = new AtomicInteger(0);
+
+	/**
+	 * @param timer
+	 *            wakes the processor to publish a batch that is not full
+	 * @param maxSize
+	 *            the most items in a batch
+	 * @param maxDelayMils
+	 *            the longest a batch's first item waits to be published
+	 */
+	public BatchProcessor(TaskTimer timer, int maxSize, long maxDelayMils) {
+		this(timer, maxSize, maxDelayMils, ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+	}
+
+	/**
+	 * @param timer
+	 * @param maxSize
+	 * @param maxDelayMils
+	 * @param executor
+	 *            delivers batches downstream
+	 * @param maxBufferCapacity
+	 *            the most batches buffered for a downstream subscriber
+	 */
+	public BatchProcessor(TaskTimer timer, int maxSize, long maxDelayMils, Executor executor,
+			int maxBufferCapacity) {
+		super(executor, maxBufferCapacity);
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be positive");
+		}
+		this.timer = timer;
+		this.maxSize = maxSize;
+		this.maxDelayMils = maxDelayMils;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		synchronized (this) {
+			if (this.subscription != null) {
+				subscription.cancel();
+				return;
+			}
+			this.subscription = subscription;
+		}
+		subscription.request(this.maxSize);
+	}
+
+	@Override
+	public void onNext(T item) {
+		boolean full = false;
+		synchronized (this) {
+			if (this.batch == null) {
+				this.batch = new ArrayList<T>(this.maxSize);
+				long seq = ++this.batchSeq;
+				this.timer.schedule(() -> flush(seq), this.maxDelayMils);
+			}
+			this.batch.add(item);
+			if (this.batch.size() >= this.maxSize) {
+				this.ready.add(this.batch);
+				this.batch = null;
+				full = true;
+			}
+		}
+		if (full) {
+			publishReady();
+		}
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		finish(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		finish(null);
+	}
+
+	/**
+	 * Publishes the batch being collected, if it is still batch seq. A timer that
+	 * fires after its batch filled up finds a later batch, or none, and leaves it
+	 * alone.
+	 * 
+	 * @param seq
+	 */
+	private void flush(long seq) {
+		synchronized (this) {
+			if (this.batch == null || seq != this.batchSeq) {
+				return;
+			}
+			this.ready.add(this.batch);
+			this.batch = null;
+		}
+		publishReady();
+	}
+
+	/**
+	 * Queues the batch being collected, if any, behind the ready batches and
+	 * closes the publisher once they are all published.
+	 * 
+	 * @param throwable
+	 *            the upstream error, or null if upstream completed
+	 */
+	private void finish(Throwable throwable) {
+		synchronized (this) {
+			if (this.batch != null) {
+				this.ready.add(this.batch);
+				this.batch = null;
+			}
+			this.done = true;
+			this.error = throwable;
+		}
+		publishReady();
+	}
+
+	/**
+	 * Publishes the ready batches in order, unless another thread already is, in
+	 * which case it publishes these too before it stops. Each batch published
+	 * asks upstream for as many items as it held.
+	 */
+	private void publishReady() {
+		if (this.publishers.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			List<T> next;
+			while ((next = pollReady()) != null) {
+				submit(next);
+				this.subscription.request(next.size());
+			}
+			Throwable error;
+			boolean done;
+			synchronized (this) {
+				done = this.done && this.ready.isEmpty();
+				error = this.error;
+			}
+			if (done) {
+				if (error == null) {
+					close();
+				} else {
+					closeExceptionally(error);
+				}
+			}
+			missed = this.publishers.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private synchronized List<T> pollReady() {
+		return this.ready.poll();
+	}
+}
@@ -0,0 +1,122 @@
+package piddle.sonos.si;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A QAClock that reads another clock once per tick on a background thread and
+ * hands out that reading.
+ * 
+ * Reading it is a single volatile load. The price is resolution: a reading can
+ * be up to a tick, plus however late the refresh thread is woken, behind the
+ * source. That makes it unfit for answering requests to the QA team. A stale
+ * reading can be earlier than a test completion the AvailabilityIndex has
+ * already published, so an inquiry stamped with it could be accepted by the
+ * freed member at a time the member was still testing. Requests read the
+ * team's own clock. This one is for stamping things that only need to be
+ * roughly right, such as metrics and logs.
+ * 
+ * The reading is taken from the source, so it never gets ahead of it and never
+ * goes backwards. The milliseconds and nanoseconds of a reading are published
+ * together in one immutable Reading, so a reader never sees the milliseconds
+ * of one refresh with the nanoseconds of another.
+ * 
+ * @author Scott
+ *
+ */
+public class CachedClock implements QAClock {
+
+	private QAClock source = null;
+	private long tickNanos = 0;
+	private volatile Reading reading = null;
+	private volatile boolean running = true;
+	private Thread refresher = null;
+
+	/**
+	 * A 1 millisecond CachedClock of the shared MonotonicClock.
+	 */
+	public CachedClock() {
+		this(MonotonicClock.getInstance(), TimeUnit.MILLISECONDS.toMicros(1));
+	}
+
+	/**
+	 * @param source
+	 *            the clock to read
+	 * @param tickMicros
+	 *            how often to read it
+	 */
+	public CachedClock(QAClock source, long tickMicros) {
+		this.source = source;
+		this.tickNanos = TimeUnit.MICROSECONDS.toNanos(tickMicros);
+		refresh();
+
+		this.refresher = new Thread(this::run, "qa-cached-clock");
+		this.refresher.setDaemon(true);
+		this.refresher.start();
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return this.reading.mils;
+	}
+
+	@Override
+	public long nanoTime() {
+		return this.reading.nanos;
+	}
+
+	/**
+	 * The milliseconds and nanoseconds of the same refresh.
+	 * 
+	 * @return
+	 */
+	public Reading read() {
+		return this.reading;
+	}
+
+	/**
+	 * The most a reading can be behind the source, ignoring a late refresh.
+	 * 
+	 * @return
+	 */
+	public long getTickNanos() {
+		return this.tickNanos;
+	}
+
+	public void shutDown() {
+		this.running = false;
+		LockSupport.unpark(this.refresher);
+	}
+
+	private void refresh() {
+		this.reading = new Reading(this.source.currentTimeMillis(), this.source.nanoTime());
+	}
+
+	private void run() {
+		while (this.running) {
+			LockSupport.parkNanos(this, this.tickNanos);
+			refresh();
+		}
+	}
+
+	/**
+	 * One reading of the source.
+	 */
+	public static class Reading {
+		private final long mils;
+		private final long nanos;
+
+		private Reading(long mils, long nanos) {
+			this.mils = mils;
+			this.nanos = nanos;
+		}
+
+		public long getMils() {
+			return this.mils;
+		}
+
+		public long getNanos() {
+			return this.nanos;
+		}
+	}
+}
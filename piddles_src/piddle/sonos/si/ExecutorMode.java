@@ -0,0 +1,110 @@
+package piddle.sonos.si;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ExecutorMode enum selects how an ExecutorService runs its tasks. It is
+ * used for both the QA team's threadpool and the request threadpool in Main.
+ * 
+ * @formatter:off
+ * 
+ * 				FIXED         -- a fixed pool of numThreads platform threads.
+ * 
+ *                VIRTUAL       -- one virtual thread per task. Blocking calls (sleeps,
+ *                                 joining a Request) park the virtual thread instead
+ *                                 of a platform thread, so hundreds of thousands of
+ *                                 simulated users can be in flight at once.
+ *                                 numThreads is ignored.
+ * 
+ *                WORK_STEALING -- a ForkJoinPool with numThreads workers. Each worker
+ *                                 has its own deque and idle workers steal from busy
+ *                                 ones, so submitters do not share one queue head.
+ * 
+ *                LOCK_FREE     -- a fixed pool of numThreads platform threads fed by
+ *                                 a LinkedTransferQueue. Submitters enqueue with a
+ *                                 CAS rather than taking the LinkedBlockingQueue
+ *                                 put lock that FIXED uses.
+ * 
+ *                INLINE        -- no threads at all. The submitting thread runs the
+ *                                 task itself. numThreads is ignored.
+ * 
+ *                ADAPTIVE      -- an AdaptiveExecutor that starts with numThreads
+ *                                 platform threads and grows or shrinks, between 1
+ *                                 and twice the number of cores (or numThreads if
+ *                                 that is more), with queue depth, task wait and
+ *                                 completion lag.
+ * 
+ * @formatter:on
+ * 
+ * Note: virtual threads need Java 21. On older runtimes VIRTUAL falls back to
+ * a cached pool of platform threads (still one thread per concurrent task) so
+ * the same configuration runs everywhere, and prints a warning to System.err
+ * every time it does: numbers measured on the fallback are not virtual thread
+ * numbers. hasVirtualThreads says which one a run will get. See
+ * ExecutorModeStudy for how the request modes compare.
+ * 
+ * @author Scott
+ *
+ */
+public enum ExecutorMode {
+	FIXED, VIRTUAL, WORK_STEALING, LOCK_FREE, INLINE, ADAPTIVE;
+
+	/**
+	 * How often an ADAPTIVE pool is looked at, and the task wait it aims for. A
+	 * test's completion should start within a millisecond of its deadline.
+	 */
+	private static final long ADAPTIVE_INTERVAL_MILS = 100;
+	private static final long ADAPTIVE_WAIT_TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	public ExecutorService create(int numThreads) {
+		switch (this) {
+		case VIRTUAL:
+			return newVirtualThreadPerTaskExecutor();
+		case WORK_STEALING:
+			return Executors.newWorkStealingPool(numThreads);
+		case LOCK_FREE:
+			return new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+					new LinkedTransferQueue<Runnable>());
+		case INLINE:
+			return new InlineExecutorService();
+		case ADAPTIVE:
+			return new AdaptiveExecutor(1,
+					Math.max(numThreads, 2 * Runtime.getRuntime().availableProcessors()),
+					numThreads, ADAPTIVE_INTERVAL_MILS, ADAPTIVE_WAIT_TARGET_NANOS);
+		case FIXED:
+		default:
+			return Executors.newFixedThreadPool(numThreads);
+		}
+	}
+
+	/**
+	 * Returns true if this runtime has virtual threads, i.e. VIRTUAL really runs
+	 * one virtual thread per task rather than falling back.
+	 * 
+	 * @return
+	 */
+	public static boolean hasVirtualThreads() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+					.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.err.println(String.format(
+					"WARNING: ExecutorMode.VIRTUAL needs Java 21 but this is Java %s. Falling back to a cached platform threadpool: this run does NOT use virtual threads.",
+					String.valueOf(Runtime.version().feature())));
+			return Executors.newCachedThreadPool();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package piddle.sonos.si;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Compares the request modes of Main: sends the Main scenario's requests
+ * through a request pool of each ExecutorMode in turn, at each request count,
+ * and prints the throughput and how long requests took to be answered.
+ * 
+ * Every request is handed to the request pool at the start of the run, the
+ * same as Main does, so latency is measured from the start of the run to the
+ * moment the request was answered, in milliseconds on the QA team's clock. A
+ * pool that cannot run every simulated user's 1-5 ms delay at once answers
+ * the later requests late, which is what a FIXED pool of one thread does and
+ * a thread per task pool does not.
+ * 
+ * VIRTUAL only means virtual threads on Java 21 and up. The study prints the
+ * runtime and whether VIRTUAL is falling back, and ExecutorMode warns when it
+ * does, so a table measured on the fallback is not mistaken for one measured
+ * on virtual threads.
+ * 
+ * Measured on a 1-core VM, Main's scenario of 3 QA workers:
+ * 
+ * @formatter:off
+ * 
+ * 				Java 21.0.1, virtual threads
+ *                mode      requests   requests/s   p50 ms   p99 ms
+ *                FIXED         2000          286     3583     7167
+ *                VIRTUAL       2000        17767       95      115
+ *                VIRTUAL      20000        31927      511      639
+ * 
+ *                Java 17.0.9, VIRTUAL falling back to a cached platform threadpool
+ *                mode      requests   requests/s   p50 ms   p99 ms
+ *                FIXED         2000          301     3455     6655
+ *                VIRTUAL       2000        17668       55      103
+ *                VIRTUAL      20000        30280      351      639
+ * 
+ * @formatter:on
+ * 
+ * Either way, a thread per task takes the simulated users' delays off the
+ * critical path. On one core the fallback's platform threads keep up with
+ * virtual threads at these counts, because the users only sleep. Virtual
+ * threads do not need a platform thread, and its stack, per user in flight.
+ * 
+ * Every run is also checked by an InvariantVerifier.
+ * 
+ * @author Scott
+ *
+ */
+public class ExecutorModeStudy {
+
+	public static void main(String args[]) {
+
+		/*@formatter:off
+		 * 
+		 * Study configuration variables
+		 * 
+		 * requestModes - the request pool modes to compare (see ExecutorMode)
+		 * requestCounts - how many requests each mode sends, once per count
+		 * workerMode - how the QA team's threadpool runs tasks, the same for every run
+		 * numQAWorkers, ... - the scenario, the same as Main's
+		 * 
+		 *@formatter:on
+		 */
+		ExecutorMode[] requestModes = { ExecutorMode.FIXED, ExecutorMode.VIRTUAL };
+		int[] requestCounts = { 2000, 20000 };
+		ExecutorMode workerMode = ExecutorMode.FIXED;
+		int numQAWorkers = 3;
+		int timeToCompleteJobMils = 50;
+		int testsPerWindow = 5;
+		int windowLength = 600;
+		int salesPerInquery = 5;
+
+		System.out.println(String.format("Java %s, %s", Runtime.version(),
+				ExecutorMode.hasVirtualThreads() ? "virtual threads"
+						: "no virtual threads: VIRTUAL is a cached platform threadpool"));
+		System.out.println(String.format("%-8s %9s %12s %8s %8s %10s", "mode", "requests",
+				"requests/s", "p50 ms", "p99 ms", "violations"));
+
+		// class loading and JIT compilation would otherwise be charged to the first run
+		run(ExecutorMode.VIRTUAL, workerMode, 2000, numQAWorkers, timeToCompleteJobMils,
+				testsPerWindow, windowLength, salesPerInquery, null);
+
+		for (int requestCount : requestCounts) {
+			for (ExecutorMode requestMode : requestModes) {
+				// a single FIXED thread sleeps through every user delay one after another,
+				// so it is only run at the smallest count
+				if (requestMode == ExecutorMode.FIXED && requestCount != requestCounts[0]) {
+					continue;
+				}
+				run(requestMode, workerMode, requestCount, numQAWorkers, timeToCompleteJobMils,
+						testsPerWindow, windowLength, salesPerInquery, requestMode.toString());
+			}
+		}
+	}
+
+	/**
+	 * One run, printed as a row unless label is null.
+	 */
+	private static void run(ExecutorMode requestMode, ExecutorMode workerMode, int requestCount,
+			int numQAWorkers, int timeToCompleteJobMils, int testsPerWindow, int windowLength,
+			int salesPerInquery, String label) {
+		QAManager manager = new QAManager(numQAWorkers,
+				Math.max(2, Runtime.getRuntime().availableProcessors() - 1), workerMode,
+				timeToCompleteJobMils, testsPerWindow, windowLength);
+		InvariantVerifier verifier = new InvariantVerifier(timeToCompleteJobMils, testsPerWindow,
+				windowLength);
+		ResponseLog log = new ResponseLog(requestCount);
+		QAClock clock = manager.getClock();
+
+		ExecutorService exec = requestMode.create(1);
+		long startMils = clock.currentTimeMillis();
+		long startNanos = clock.nanoTime();
+		ArrayList<Request> requests = Main.runTest(requestCount, exec, manager, salesPerInquery,
+				verifier, log, null);
+		exec.shutdown();
+		LatencyHistogram latency = new LatencyHistogram();
+		for (Request req : requests) {
+			latency.record(req.checkResponse().getTime() - startMils);
+		}
+		long elapsedNanos = clock.nanoTime() - startNanos;
+		manager.shutDown();
+
+		if (label != null) {
+			System.out.println(String.format("%-8s %9d %12.0f %8d %8d %10d", label, requestCount,
+					requestCount * 1e9 / Math.max(1, elapsedNanos), latency.getPercentile(0.50),
+					latency.getPercentile(0.99), verifier.getViolationCount()));
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package piddle.sonos.si;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads one stream of sales across several QA teams, sending each sale to a
+ * team that has asked for one.
+ * 
+ * Each lane is a publisher for one subscriber, normally a QATeamProcessor.
+ * Whatever a lane's subscriber asks for is asked of upstream, so upstream
+ * demand is the sum of the teams' capacity. A sale goes to the next lane, in
+ * round robin order, with demand left, which keeps the teams evenly loaded
+ * when they all have capacity and sends everything to the one that does when
+ * the others are busy. A sale that arrives when no lane has demand, which only
+ * happens after a lane's subscriber cancels, is answered REJECTED.
+ * 
+ * Create the lanes and subscribe to them before subscribing the fan out
+ * upstream. Completion and errors are passed on to every lane that has not
+ * been cancelled. A lane whose subscriber asks for zero or fewer sales is
+ * cancelled and its subscriber is sent an IllegalArgumentException, as rule
+ * 3.9 of the Reactive Streams specification requires.
+ * 
+ * @author Scott
+ *
+ */
+public class FanOut implements Flow.Subscriber<Request> {
+
+	private QAClock clock = null;
+	private CopyOnWriteArrayList<Lane> lanes = new CopyOnWriteArrayList<Lane>();
+	private Flow.Subscription upstream = null;
+	private long pending = 0;
+	private int next = 0;
+
+	/**
+	 * @param clock
+	 *            the QA teams' clock, which stamps the sales no lane could take
+	 */
+	public FanOut(QAClock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * A new lane. Sales are only sent to it once it has a subscriber that asked
+	 * for them.
+	 * 
+	 * @return
+	 */
+	public Flow.Publisher<Request> lane() {
+		Lane lane = new Lane();
+		this.lanes.add(lane);
+		return lane;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		long demand;
+		synchronized (this) {
+			if (this.upstream != null) {
+				subscription.cancel();
+				return;
+			}
+			this.upstream = subscription;
+			demand = this.pending;
+			this.pending = 0;
+		}
+		if (demand > 0) {
+			subscription.request(demand);
+		}
+	}
+
+	/**
+	 * Upstream delivers one sale at a time, so the round robin position needs no
+	 * lock.
+	 */
+	@Override
+	public void onNext(Request req) {
+		int size = this.lanes.size();
+		for (int x = 0; x < size; x++) {
+			Lane lane = this.lanes.get((this.next + x) % size);
+			if (lane.takeDemand()) {
+				this.next = (this.next + x + 1) % size;
+				lane.subscriber.onNext(req);
+				return;
+			}
+		}
+		req.end(ResponseType.REJECTED, this.clock.currentTimeMillis(), this.clock.nanoTime());
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		for (Lane lane : this.lanes) {
+			if (lane.subscriber != null && !lane.cancelled) {
+				lane.subscriber.onError(throwable);
+			}
+		}
+	}
+
+	@Override
+	public void onComplete() {
+		for (Lane lane : this.lanes) {
+			if (lane.subscriber != null && !lane.cancelled) {
+				lane.subscriber.onComplete();
+			}
+		}
+	}
+
+	private void requestUpstream(long n) {
+		Flow.Subscription upstream;
+		synchronized (this) {
+			upstream = this.upstream;
+			if (upstream == null) {
+				this.pending = this.pending + n < 0 ? Long.MAX_VALUE : this.pending + n;
+				return;
+			}
+		}
+		upstream.request(n);
+	}
+
+	private class Lane implements Flow.Publisher<Request>, Flow.Subscription {
+		private volatile Flow.Subscriber<? super Request> subscriber = null;
+		private AtomicLong demand = new AtomicLong(0);
+		private volatile boolean cancelled = false;
+
+		@Override
+		public void subscribe(Flow.Subscriber<? super Request> subscriber) {
+			synchronized (this) {
+				if (this.subscriber == null) {
+					this.subscriber = subscriber;
+					subscriber.onSubscribe(this);
+					return;
+				}
+			}
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("A fan out lane supports one subscriber"));
+		}
+
+		@Override
+		public void request(long n) {
+			if (this.cancelled) {
+				return;
+			}
+			if (n <= 0) {
+				cancel();
+				this.subscriber.onError(new IllegalArgumentException(
+						"A fan out lane was asked for " + n + " sales. Requests must be positive"));
+				return;
+			}
+			// Long.MAX_VALUE asks for everything, so the sum stops there rather than
+			// overflowing
+			long cur, next;
+			do {
+				cur = this.demand.get();
+				next = cur + n < 0 ? Long.MAX_VALUE : cur + n;
+			} while (!this.demand.compareAndSet(cur, next));
+			requestUpstream(n);
+		}
+
+		@Override
+		public void cancel() {
+			this.cancelled = true;
+			this.demand.set(0);
+		}
+
+		boolean takeDemand() {
+			long cur;
+			do {
+				cur = this.demand.get();
+				if (cur == 0) {
+					return false;
+				}
+			} while (!this.demand.compareAndSet(cur, cur - 1));
+			return true;
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package piddle.sonos.si;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Compares firing sales at QA teams with pacing them through a Flow pipeline.
+ * 
+ * @formatter:off
+ * 
+ * 				fire and forget -- each sale goes to the next team in turn and is
+ *                                 answered at once: CONSUMED if a member was free,
+ *                                 REJECTED if not.
+ * 
+ *              pipeline        -- sales are published to a SubmissionPublisher and pass
+ *                                 through a TimeoutProcessor, a FanOut across the teams,
+ *                                 one QATeamProcessor per team and one BatchProcessor per
+ *                                 team, whose batches are checked by an
+ *                                 InvariantVerifier. A sale waits for capacity on any team
+ *                                 for up to maxWaitMils.
+ * 
+ * @formatter:on
+ * 
+ * Both modes send the same Poisson arrivals in real time, at each rate in
+ * turn, and print the share of sales consumed and how long the consumed ones
+ * took to be answered, in milliseconds from their send time.
+ * 
+ * @author Scott
+ *
+ */
+public class FlowStudy {
+
+	public static void main(String args[]) {
+
+		/*@formatter:off
+		 * 
+		 * Study configuration variables
+		 * 
+		 * ratesPerSec - the sale rates to compare the modes at
+		 * seconds - how long each rate is sent for
+		 * maxWaitMils - how long the pipeline holds a sale waiting for capacity
+		 * holdCapacity - the most sales the pipeline holds at once
+		 * batchSize, batchDelayMils - how the pipeline batches answered sales
+		 * numTeams - the number of QA teams sales are spread across
+		 * numQAWorkers, ... - each team, the same as Main's
+		 * 
+		 *@formatter:on
+		 */
+		double[] ratesPerSec = { 20, 40, 80, 160 };
+		double seconds = 3;
+		int maxWaitMils = 100;
+		int holdCapacity = 64;
+		int batchSize = 32;
+		int batchDelayMils = 50;
+		int numTeams = 2;
+		int numQAWorkers = 3;
+		int timeToCompleteJobMils = 50;
+		int testsPerWindow = 5;
+		int windowLength = 600;
+		long seed = 42;
+
+		System.out.println(String.format("%8s %16s %8s %8s %10s %8s %8s %10s", "rate/s", "mode",
+				"sales", "consumed", "conversion", "p50 ms", "p99 ms", "violations"));
+		for (double perSec : ratesPerSec) {
+			long[] offsets = LoadGenerator.poisson(perSec, seed).offsets((int) (perSec * seconds));
+
+			QAManager[] teams = newTeams(numTeams, numQAWorkers, timeToCompleteJobMils,
+					testsPerWindow, windowLength);
+			InvariantVerifier[] verifiers = newVerifiers(numTeams, timeToCompleteJobMils,
+					testsPerWindow, windowLength);
+			report(perSec, "fire and forget", fireAndForget(offsets, teams, verifiers), verifiers);
+			shutDown(teams);
+
+			teams = newTeams(numTeams, numQAWorkers, timeToCompleteJobMils, testsPerWindow,
+					windowLength);
+			verifiers = newVerifiers(numTeams, timeToCompleteJobMils, testsPerWindow,
+					windowLength);
+			report(perSec, "pipeline", pipeline(offsets, teams, verifiers, maxWaitMils,
+					holdCapacity, batchSize, batchDelayMils), verifiers);
+			shutDown(teams);
+		}
+	}
+
+	private static List<Request> fireAndForget(long[] offsets, QAManager[] teams,
+			InvariantVerifier[] verifiers) {
+		int[] next = { 0 };
+		return send(offsets, teams[0].getClock(), req -> {
+			int x = next[0]++ % teams.length;
+			long curTime = teams[x].currentTimeMillis();
+			req.end(teams[x].sellHydrant(curTime, req) ? ResponseType.CONSUMED
+					: ResponseType.REJECTED, curTime, teams[x].getClock().nanoTime());
+			verifiers[x].accept(req.getResponse());
+		});
+	}
+
+	private static List<Request> pipeline(long[] offsets, QAManager[] teams,
+			InvariantVerifier[] verifiers, int maxWaitMils, int holdCapacity, int batchSize,
+			int batchDelayMils) {
+		ExecutorService flowExec = Executors.newFixedThreadPool(2);
+		HashedWheelTimer timer = new HashedWheelTimer(flowExec, 1, 512);
+
+		SubmissionPublisher<Request> source = new SubmissionPublisher<Request>(flowExec,
+				holdCapacity);
+		TimeoutProcessor timeout = new TimeoutProcessor(timer, maxWaitMils, holdCapacity);
+		FanOut fanOut = new FanOut(timer);
+		List<CompletableFuture<Void>> logged = new ArrayList<CompletableFuture<Void>>();
+		for (int x = 0; x < teams.length; x++) {
+			QATeamProcessor team = new QATeamProcessor(teams[x], flowExec, holdCapacity);
+			BatchProcessor<Request> batches = new BatchProcessor<Request>(timer, batchSize,
+					batchDelayMils, flowExec, 16);
+			InvariantVerifier verifier = verifiers[x];
+			fanOut.lane().subscribe(team);
+			team.subscribe(batches);
+			logged.add(batches.consume(batch -> {
+				for (Request req : batch) {
+					verifier.accept(req.getResponse());
+				}
+			}));
+		}
+		timeout.subscribe(fanOut);
+		source.subscribe(timeout);
+
+		List<Request> sent = send(offsets, teams[0].getClock(), source::submit);
+		source.close();
+		for (Request req : sent) {
+			req.checkResponse();
+		}
+		for (CompletableFuture<Void> done : logged) {
+			done.join();
+		}
+
+		timer.shutDown();
+		flowExec.shutdown();
+		return sent;
+	}
+
+	/**
+	 * Sends a sale at each offset, in nanoseconds from now, stamped with its
+	 * intended send time on the QA teams' clock.
+	 * 
+	 * @param offsets
+	 * @param clock
+	 *            the QA teams' clock
+	 * @param sender
+	 * @return the sales sent
+	 */
+	private static List<Request> send(long[] offsets, QAClock clock, Consumer<Request> sender) {
+		List<Request> sent = new ArrayList<Request>(offsets.length);
+		long startNanos = clock.nanoTime();
+		long startMils = clock.currentTimeMillis();
+		for (long offset : offsets) {
+			long now;
+			while ((now = clock.nanoTime()) < startNanos + offset) {
+				LockSupport.parkNanos(startNanos + offset - now);
+			}
+			Request req = new Request();
+			req.setSentTime(startMils + TimeUnit.NANOSECONDS.toMillis(offset));
+			sent.add(req);
+			sender.accept(req);
+		}
+		return sent;
+	}
+
+	private static void report(double perSec, String mode, List<Request> sent,
+			InvariantVerifier[] verifiers) {
+		LatencyHistogram latency = new LatencyHistogram();
+		for (Request req : sent) {
+			Response resp = req.checkResponse();
+			if (resp.getResponseType() == ResponseType.CONSUMED) {
+				latency.record(resp.getTime() - req.getSentTime());
+			}
+		}
+		long violations = 0;
+		for (InvariantVerifier verifier : verifiers) {
+			violations += verifier.getViolationCount();
+		}
+		System.out.println(String.format("%8.0f %16s %8d %8d %9.2f%% %8d %8d %10d", perSec, mode,
+				sent.size(), latency.getCount(), 100.0 * latency.getCount() / Math.max(1, sent.size()),
+				latency.getPercentile(0.50), latency.getPercentile(0.99), violations));
+	}
+
+	private static QAManager[] newTeams(int numTeams, int numQAWorkers, int timeToCompleteJobMils,
+			int testsPerWindow, int windowLength) {
+		QAManager[] teams = new QAManager[numTeams];
+		for (int x = 0; x < numTeams; x++) {
+			teams[x] = new QAManager(numQAWorkers, 2, timeToCompleteJobMils, testsPerWindow,
+					windowLength);
+		}
+		return teams;
+	}
+
+	private static InvariantVerifier[] newVerifiers(int numTeams, int timeToCompleteJobMils,
+			int testsPerWindow, int windowLength) {
+		InvariantVerifier[] verifiers = new InvariantVerifier[numTeams];
+		for (int x = 0; x < numTeams; x++) {
+			verifiers[x] = new InvariantVerifier(timeToCompleteJobMils, testsPerWindow,
+					windowLength);
+		}
+		return verifiers;
+	}
+
+	private static void shutDown(QAManager[] teams) {
+		for (QAManager team : teams) {
+			team.shutDown();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package piddle.sonos.si;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel used to finish QA tests at the right time without
+ * parking a pool thread for the length of every test.
+ * 
+ * The wheel is an array of buckets, one per tick. A task that is due in n ticks
+ * goes into bucket (currentTick + n) mod wheelSize along with the number of
+ * full turns of the wheel it has to wait. A single ticker thread wakes up once
+ * per tick, fires the tasks in that tick's bucket whose turns have run out, and
+ * hands them to the executor. Scheduling and expiring a task are both O(1), and
+ * thousands of in-flight tests cost one ticker thread.
+ * 
+ * Callers never touch the buckets. schedule drops the task into a lock free
+ * inbox which the ticker drains at the start of each tick, so the buckets
+ * themselves only need plain, single threaded collections.
+ * 
+ * A task never fires before its deadline. It fires at the end of the tick its
+ * deadline falls in, plus however long the executor takes to start it. That
+ * delay is recorded as completion jitter.
+ * 
+ * @author Scott
+ *
+ */
+public class HashedWheelTimer implements TaskTimer {
+
+	private Executor exec = null;
+	private MonotonicClock clock = MonotonicClock.getInstance();
+	private long tickNanos = 0;
+	private int mask = 0;
+	private ArrayDeque<Timeout>[] wheel = null;
+	private ConcurrentLinkedQueue<Timeout> inbox = new ConcurrentLinkedQueue<Timeout>();
+	private Thread ticker = null;
+	private volatile boolean running = true;
+	private long startNanos = 0;
+	private long tick = 0;
+
+	private LongAdder fired = new LongAdder();
+	private LongAdder totalJitterNanos = new LongAdder();
+	private LongAccumulator maxJitterNanos = new LongAccumulator(Long::max, 0);
+
+	/**
+	 * @param exec
+	 *            the executor expired tasks are handed to
+	 * @param tickMils
+	 *            the resolution of the timer
+	 * @param wheelSize
+	 *            the number of buckets. Rounded up to a power of two
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public HashedWheelTimer(Executor exec, long tickMils, int wheelSize) {
+		this.exec = exec;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMils);
+
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.mask = size - 1;
+		this.wheel = new ArrayDeque[size];
+		for (int x = 0; x < size; x++) {
+			this.wheel[x] = new ArrayDeque<Timeout>();
+		}
+
+		this.startNanos = System.nanoTime();
+		this.ticker = new Thread(this::run, "qa-timer-wheel");
+		this.ticker.setDaemon(true);
+		this.ticker.start();
+	}
+
+	/**
+	 * Runs task on the executor once delayMils have passed.
+	 * 
+	 * @param task
+	 * @param delayMils
+	 */
+	@Override
+	public void schedule(Runnable task, long delayMils) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMils);
+		this.inbox.add(new Timeout(task, deadline));
+	}
+
+	/**
+	 * Milliseconds on a MonotonicClock, so that the time does not step when the
+	 * wall clock is corrected. Deadlines are on System.nanoTime, the same clock.
+	 */
+	@Override
+	public long currentTimeMillis() {
+		return this.clock.currentTimeMillis();
+	}
+
+	@Override
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+
+	@Override
+	public long getFiredCount() {
+		return this.fired.sum();
+	}
+
+	/**
+	 * Average time between a task's deadline and the moment it started running.
+	 * 
+	 * @return
+	 */
+	@Override
+	public long getMeanJitterNanos() {
+		long count = this.fired.sum();
+		return count == 0 ? 0 : this.totalJitterNanos.sum() / count;
+	}
+
+	@Override
+	public long getMaxJitterNanos() {
+		return this.maxJitterNanos.get();
+	}
+
+	/**
+	 * One tick: a task fires at the end of the tick its deadline falls in.
+	 */
+	@Override
+	public long getResolutionNanos() {
+		return this.tickNanos;
+	}
+
+	@Override
+	public void shutDown() {
+		this.running = false;
+		LockSupport.unpark(this.ticker);
+	}
+
+	private void run() {
+		while (this.running) {
+			long tickEnd = this.startNanos + (this.tick + 1) * this.tickNanos;
+			long now;
+			while (this.running && (now = System.nanoTime()) < tickEnd) {
+				LockSupport.parkNanos(this, tickEnd - now);
+			}
+
+			transferInbox();
+
+			Iterator<Timeout> it = this.wheel[(int) (this.tick & this.mask)].iterator();
+			while (it.hasNext()) {
+				Timeout timeout = it.next();
+				if (timeout.rounds <= 0) {
+					it.remove();
+					this.exec.execute(timeout);
+				} else {
+					timeout.rounds--;
+				}
+			}
+
+			this.tick++;
+		}
+	}
+
+	/**
+	 * Files every newly scheduled task into its bucket. A task whose deadline is
+	 * already behind the wheel goes into the current bucket and fires this tick.
+	 */
+	private void transferInbox() {
+		Timeout timeout;
+		while ((timeout = this.inbox.poll()) != null) {
+			long due = Math.max((timeout.deadline - this.startNanos) / this.tickNanos, this.tick);
+			timeout.rounds = (due - this.tick) / this.wheel.length;
+			this.wheel[(int) (due & this.mask)].add(timeout);
+		}
+	}
+
+	private class Timeout implements Runnable {
+		private Runnable task;
+		private long deadline;
+		private long rounds;
+
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void run() {
+			long jitter = System.nanoTime() - this.deadline;
+			fired.increment();
+			totalJitterNanos.add(jitter);
+			maxJitterNanos.accumulate(jitter);
+			this.task.run();
+		}
+	}
+}
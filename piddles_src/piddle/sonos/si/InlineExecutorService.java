@@ -0,0 +1,50 @@
+package piddle.sonos.si;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An ExecutorService that runs every task on the thread that submitted it.
+ * Used by ExecutorMode.INLINE when the tasks handed to the QA team's pool are
+ * short enough that queueing them costs more than running them.
+ * 
+ * @author Scott
+ *
+ */
+public class InlineExecutorService extends AbstractExecutorService {
+
+	private volatile boolean isShutdown = false;
+
+	@Override
+	public void execute(Runnable task) {
+		task.run();
+	}
+
+	@Override
+	public void shutdown() {
+		this.isShutdown = true;
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		this.isShutdown = true;
+		return Collections.emptyList();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return this.isShutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return this.isShutdown;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) {
+		return this.isShutdown;
+	}
+}
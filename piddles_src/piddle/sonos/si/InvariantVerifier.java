@@ -0,0 +1,156 @@
+package piddle.sonos.si;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks the two QA team rules one response at a time, as each request is
+ * answered, instead of sorting and grouping every response at the end of a
+ * run.
+ * 
+ * @formatter:off
+ * 
+ * 				test length -- a worker does not consume a sale or accept an inquiry
+ *                             within timeToCompleteJobMils of consuming a sale.
+ * 
+ *                breaks      -- a worker does not consume more than testsPerWindow
+ *                             sales in any windowLength.
+ * 
+ * @formatter:on
+ * 
+ * Each worker only needs the times of its last testsPerWindow consumed sales,
+ * kept in a ring, so the verifier uses O(workers * testsPerWindow) memory no
+ * matter how many requests pass through it. The rings are found by worker id
+ * in a copy-on-write array, which only grows when a new worker shows up. A violation is printed and counted
+ * the moment the response that causes it arrives.
+ * 
+ * Responses of one worker are expected in time order, which is how the single
+ * threaded request pool in Main and the SimulationEngine answer them. An
+ * inquiry that is answered late (its time is before the worker's latest sale)
+ * is checked against the sale before it in the ring.
+ * 
+ * @author Scott
+ *
+ */
+public class InvariantVerifier {
+
+	private int timeToCompleteJobMils = 0;
+	private int testsPerWindow = 0;
+	private int windowLength = 0;
+	private volatile WorkerState[] workers = new WorkerState[0];
+	private AtomicLong testLengthViolations = new AtomicLong(0);
+	private AtomicLong breakViolations = new AtomicLong(0);
+
+	public InvariantVerifier(int timeToCompleteJobMils, int testsPerWindow, int windowLength) {
+		this.timeToCompleteJobMils = timeToCompleteJobMils;
+		this.testsPerWindow = testsPerWindow;
+		this.windowLength = windowLength;
+	}
+
+	/**
+	 * Checks one answered request. Only consumed sales and accepted inquiries are
+	 * attributed to a worker, everything else is ignored.
+	 * 
+	 * @param resp
+	 */
+	public void accept(Response resp) {
+		ResponseType type = resp.getResponseType();
+		if (type != ResponseType.CONSUMED && type != ResponseType.TEST_ACCEPT) {
+			return;
+		}
+
+		int worker = resp.getFulfilledBy();
+		WorkerState state = getState(worker);
+		long time = resp.getTime();
+
+		synchronized (state) {
+			long lastConsumed = state.lastConsumedAtOrBefore(time);
+			if (lastConsumed != Long.MIN_VALUE
+					&& time - lastConsumed < this.timeToCompleteJobMils) {
+				this.testLengthViolations.incrementAndGet();
+				System.out.println(String.format(
+						"Violation: QA Member %s answered %s at %s while testing since %s",
+						String.valueOf(worker), type, String.valueOf(time),
+						String.valueOf(lastConsumed)));
+			}
+
+			if (type == ResponseType.CONSUMED) {
+				if (state.count >= this.testsPerWindow
+						&& time - state.ring[state.next] < this.windowLength) {
+					this.breakViolations.incrementAndGet();
+					System.out.println(String.format(
+							"Violation: QA Member %s consumed %s sales within %s milisecond (last at %s)",
+							String.valueOf(worker), String.valueOf(this.testsPerWindow + 1),
+							String.valueOf(time - state.ring[state.next]), String.valueOf(time)));
+				}
+				state.add(time);
+			}
+		}
+	}
+
+	public boolean isTestLengthRespected() {
+		return this.testLengthViolations.get() == 0;
+	}
+
+	public boolean isBreaksRespected() {
+		return this.breakViolations.get() == 0;
+	}
+
+	public long getViolationCount() {
+		return this.testLengthViolations.get() + this.breakViolations.get();
+	}
+
+	private WorkerState getState(int worker) {
+		WorkerState[] workers = this.workers;
+		if (worker < workers.length && workers[worker] != null) {
+			return workers[worker];
+		}
+		return addState(worker);
+	}
+
+	private synchronized WorkerState addState(int worker) {
+		WorkerState[] workers = this.workers;
+		if (worker < workers.length && workers[worker] != null) {
+			return workers[worker];
+		}
+		WorkerState[] grown = Arrays.copyOf(workers, Math.max(workers.length, worker + 1));
+		grown[worker] = new WorkerState(this.testsPerWindow);
+		this.workers = grown;
+		return grown[worker];
+	}
+
+	/**
+	 * The times of a worker's last testsPerWindow consumed sales. next is the
+	 * oldest entry once the ring is full, and the slot the next sale goes into.
+	 */
+	private static class WorkerState {
+		private long[] ring;
+		private int next = 0;
+		private long count = 0;
+
+		WorkerState(int testsPerWindow) {
+			this.ring = new long[Math.max(1, testsPerWindow)];
+		}
+
+		void add(long time) {
+			this.ring[this.next] = time;
+			this.next = (this.next + 1) % this.ring.length;
+			this.count++;
+		}
+
+		/**
+		 * The latest consumed sale at or before time, or Long.MIN_VALUE if there is
+		 * none in the ring.
+		 */
+		long lastConsumedAtOrBefore(long time) {
+			int size = (int) Math.min(this.count, this.ring.length);
+			for (int x = 1; x <= size; x++) {
+				long consumed = this.ring[(this.next + this.ring.length - x) % this.ring.length];
+				if (consumed <= time) {
+					return consumed;
+				}
+			}
+			return Long.MIN_VALUE;
+		}
+	}
+}
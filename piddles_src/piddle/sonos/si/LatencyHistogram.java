@@ -0,0 +1,149 @@
+package piddle.sonos.si;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, lock free histogram of non-negative long values that covers
+ * the whole long range with about 6% relative error, in the style of
+ * HdrHistogram.
+ * 
+ * Values below 32 get a bucket each. Above that, every power of two is split
+ * into 16 linear sub-buckets, so a bucket is never wider than 1/16 of the
+ * values in it. Finding a bucket is a leading zero count and two shifts, and
+ * recording is one atomic increment, with no allocation.
+ * 
+ * Every request thread records into the same histogram, and the latencies of
+ * a run mostly land in a handful of buckets, so a single array of counts has
+ * every thread incrementing the same few cache lines. The counts are striped
+ * instead, the way LongAdder stripes its cells: there is a full set of buckets
+ * per stripe, at least twice as many stripes as processors (a power of two, at
+ * most 64), and a thread always records
+ * into the stripe its id hashes to. Two threads only share counts when their
+ * ids collide. Each stripe is followed by PADDING unused counts, a whole 64
+ * byte cache line, so the last buckets of one stripe and the first buckets of
+ * the next never share a line, wherever the array happens to be aligned.
+ * Reads add the stripes up, which costs them one pass per stripe, and reads
+ * are rare next to records.
+ * 
+ * @author Scott
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	private static final int PADDING = 64 / Long.BYTES;
+	private static final int STRIDE = BUCKETS + PADDING;
+
+	private static final int STRIPES = Math.min(64,
+			Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1);
+
+	private AtomicLongArray counts = new AtomicLongArray(STRIPES * STRIDE);
+
+	public void record(long value) {
+		this.counts.incrementAndGet(stripe() + index(Math.max(0, value)));
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int x = 0; x < STRIPES * STRIDE; x++) {
+			count += this.counts.get(x);
+		}
+		return count;
+	}
+
+	/**
+	 * The value at or below which fraction of the recorded values lie, to within
+	 * the width of its bucket. 0 if nothing has been recorded.
+	 * 
+	 * @param fraction
+	 *            between 0 and 1, e.g. 0.99
+	 * @return
+	 */
+	public long getPercentile(double fraction) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int x = 0; x < BUCKETS; x++) {
+			snapshot[x] = get(x);
+			count += snapshot[x];
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int x = 0; x < BUCKETS; x++) {
+			seen += snapshot[x];
+			if (seen >= rank) {
+				return highestValue(x);
+			}
+		}
+		return highestValue(BUCKETS - 1);
+	}
+
+	/**
+	 * The largest recorded value, to within the width of its bucket.
+	 * 
+	 * @return
+	 */
+	public long getMax() {
+		for (int x = BUCKETS - 1; x >= 0; x--) {
+			if (get(x) != 0) {
+				return highestValue(x);
+			}
+		}
+		return 0;
+	}
+
+	public void reset() {
+		for (int x = 0; x < STRIPES * STRIDE; x++) {
+			this.counts.set(x, 0);
+		}
+	}
+
+	/**
+	 * The count of bucket x across every stripe.
+	 */
+	private long get(int x) {
+		long count = 0;
+		for (int stripe = x; stripe < STRIPES * STRIDE; stripe += STRIDE) {
+			count += this.counts.get(stripe);
+		}
+		return count;
+	}
+
+	/**
+	 * The offset of the calling thread's stripe in counts. The id is mixed with
+	 * a multiplicative hash first, since pool threads are usually created one
+	 * after the other and have consecutive ids.
+	 */
+	@SuppressWarnings("deprecation")
+	private static int stripe() {
+		long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return (int) (id >>> 58) % STRIPES * STRIDE;
+	}
+
+	private static int index(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/**
+	 * The largest value that falls into bucket x.
+	 */
+	private static long highestValue(int x) {
+		if (x < LINEAR) {
+			return x;
+		}
+		int shift = x / SUB_BUCKETS - 1;
+		long subBucket = x % SUB_BUCKETS + SUB_BUCKETS;
+		long highest = ((subBucket + 1) << shift) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+}
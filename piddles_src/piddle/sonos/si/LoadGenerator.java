@@ -0,0 +1,396 @@
+package piddle.sonos.si;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Drives a QAManager open loop: requests are sent on a schedule fixed before
+ * the run starts, whether or not earlier requests have been answered.
+ * 
+ * Main.runTest is closed loop. Its one thread sleeps before every request and
+ * stamps the time after the sleep, so when the system is slow the load drops
+ * with it and the time spent queued is never counted (coordinated omission).
+ * Here every request has an intended send time from a Schedule, and its latency
+ * is measured from that intended time to the moment it is answered. A sender
+ * that falls behind sends at once, and the time it was late counts against the
+ * request. The intended time is also set as the request's sent time, so the
+ * MetricsRegistry measures the same way.
+ * 
+ * Requests are sent from threads platform threads. Each takes the next request
+ * due with one atomic increment, parks until its intended time and sends it,
+ * so no one thread has to keep up with the whole rate. Every salesPerInquery'th
+ * request is a sale, as in Main.
+ * 
+ * ramp drives the manager at a rising rate until it saturates, i.e. until
+ * latency from the intended send time passes a budget or the rate achieved
+ * falls behind the rate asked for.
+ * 
+ * @author Scott
+ *
+ */
+public class LoadGenerator {
+
+	/**
+	 * Start parking this long before a request is due and spin the rest, since a
+	 * park can overshoot by tens of microseconds.
+	 */
+	private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private QAManager manager = null;
+	private int threads = 0;
+	private int salesPerInquery = 0;
+	private AuditJournal journal = null;
+
+	/**
+	 * When the requests of a run should be sent.
+	 */
+	public interface Schedule {
+		/**
+		 * The intended send time of each of count requests, in nanoseconds after
+		 * the run starts, in ascending order.
+		 * 
+		 * @param count
+		 * @return
+		 */
+		public long[] offsets(int count);
+	}
+
+	/**
+	 * @param manager
+	 * @param threads
+	 *            the number of sender threads
+	 * @param salesPerInquery
+	 *            the number of canSellHydrant calls per sellHydrant call
+	 */
+	public LoadGenerator(QAManager manager, int threads, int salesPerInquery) {
+		this.manager = manager;
+		this.threads = threads;
+		this.salesPerInquery = salesPerInquery;
+	}
+
+	/**
+	 * Journals every request of later runs. null turns the journal off.
+	 * 
+	 * @param journal
+	 */
+	public void setJournal(AuditJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * One request every 1/perSec seconds.
+	 * 
+	 * @param perSec
+	 * @return
+	 */
+	public static Schedule constant(double perSec) {
+		return count -> {
+			double gap = TimeUnit.SECONDS.toNanos(1) / perSec;
+			long[] offsets = new long[count];
+			for (int x = 0; x < count; x++) {
+				offsets[x] = (long) (x * gap);
+			}
+			return offsets;
+		};
+	}
+
+	/**
+	 * Independent arrivals at perSec on average, i.e. exponential gaps between
+	 * requests, the way many unrelated users arrive.
+	 * 
+	 * @param perSec
+	 * @param seed
+	 * @return
+	 */
+	public static Schedule poisson(double perSec, long seed) {
+		return bursty(perSec, 1, seed);
+	}
+
+	/**
+	 * Bursts of burstSize requests sent at the same instant, with the bursts
+	 * arriving as a Poisson process so that the mean rate is perSec.
+	 * 
+	 * @param perSec
+	 * @param burstSize
+	 * @param seed
+	 * @return
+	 */
+	public static Schedule bursty(double perSec, int burstSize, long seed) {
+		return count -> {
+			SplittableRandom random = new SplittableRandom(seed);
+			double meanGap = TimeUnit.SECONDS.toNanos(1) * burstSize / perSec;
+			long[] offsets = new long[count];
+			double time = 0;
+			for (int x = 0; x < count; x++) {
+				if (x % burstSize == 0 && x != 0) {
+					time += -Math.log(1 - random.nextDouble()) * meanGap;
+				}
+				offsets[x] = (long) time;
+			}
+			return offsets;
+		};
+	}
+
+	/**
+	 * Replays recorded send times, e.g. the CREATED times of an AuditJournal,
+	 * speedup times faster. A run longer than the recording plays it again from
+	 * the start.
+	 * 
+	 * @param sentTimesMils
+	 *            in ascending order
+	 * @param speedup
+	 * @return
+	 */
+	public static Schedule replay(long[] sentTimesMils, double speedup) {
+		long[] times = sentTimesMils.clone();
+		return count -> {
+			long first = times[0];
+			long last = times[times.length - 1];
+			// a pass starts one mean gap after the last request of the pass before
+			double period = last - first + (last - first) / (double) Math.max(1, times.length - 1);
+			double nanosPerMil = TimeUnit.MILLISECONDS.toNanos(1) / speedup;
+			long[] offsets = new long[count];
+			for (int x = 0; x < count; x++) {
+				int pass = x / times.length;
+				offsets[x] = (long) ((pass * period + times[x % times.length] - first) * nanosPerMil);
+			}
+			return offsets;
+		};
+	}
+
+	public Run run(Schedule schedule, int count) {
+		return run(schedule, count, null);
+	}
+
+	/**
+	 * Sends count requests on schedule and returns once every one of them has
+	 * been answered.
+	 * 
+	 * @param schedule
+	 * @param count
+	 * @param listener
+	 *            called with every response as it is answered, or null
+	 * @return
+	 */
+	public Run run(Schedule schedule, int count, Consumer<Response> listener) {
+		long[] offsets = schedule.offsets(count);
+		Request[] requests = new Request[count];
+		Run run = new Run(count, offsets.length == 0 ? 0 : offsets[offsets.length - 1]);
+		AtomicInteger next = new AtomicInteger(0);
+
+		QAClock clock = this.manager.getClock();
+		long startMils = clock.currentTimeMillis();
+		long startNanos = clock.nanoTime();
+		List<Thread> senders = new ArrayList<Thread>();
+		for (int t = 0; t < this.threads; t++) {
+			Thread sender = new Thread(() -> {
+				int x;
+				while ((x = next.getAndIncrement()) < count) {
+					long intendedNanos = startNanos + offsets[x];
+					waitUntil(clock, intendedNanos);
+					run.maxLagNanos.accumulate(clock.nanoTime() - intendedNanos);
+
+					long sentTime = startMils + TimeUnit.NANOSECONDS.toMillis(offsets[x]);
+					Request req = this.journal == null ? new Request()
+							: new Request(this.journal, sentTime);
+					req.setSentTime(sentTime);
+					req.onComplete(resp -> run.record(resp,
+							clock.nanoTime() - intendedNanos));
+					if (listener != null) {
+						req.onComplete(listener);
+					}
+					requests[x] = req;
+					send(x, req);
+				}
+			}, "load-generator-" + t);
+			sender.setDaemon(true);
+			senders.add(sender);
+			sender.start();
+		}
+
+		for (Thread sender : senders) {
+			try {
+				sender.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while sending requests", e);
+			}
+		}
+		run.sendNanos = clock.nanoTime() - startNanos;
+		for (Request req : requests) {
+			req.checkResponse();
+		}
+		return run;
+	}
+
+	/**
+	 * Runs Poisson load at startPerSec for stepSeconds, then at factor times that
+	 * rate, and so on, up to maxPerSec or the first step that saturated,
+	 * whichever comes first.
+	 * 
+	 * @param startPerSec
+	 * @param factor
+	 * @param maxPerSec
+	 * @param stepSeconds
+	 * @param latencyBudgetMicros
+	 *            a step whose p99 latency is above this has saturated
+	 * @param seed
+	 * @param listener
+	 *            called with every response as it is answered, or null
+	 * @return one Run per step, the saturated one last
+	 */
+	public List<Run> ramp(double startPerSec, double factor, double maxPerSec,
+			double stepSeconds, long latencyBudgetMicros, long seed, Consumer<Response> listener) {
+		List<Run> steps = new ArrayList<Run>();
+		for (double rate = startPerSec; rate <= maxPerSec; rate *= factor) {
+			Run step = run(poisson(rate, seed), (int) Math.max(1, rate * stepSeconds), listener);
+			steps.add(step);
+			if (step.isSaturated(latencyBudgetMicros)) {
+				break;
+			}
+		}
+		return steps;
+	}
+
+	private void send(int x, Request req) {
+		QAClock clock = this.manager.getClock();
+		long curTime = clock.currentTimeMillis();
+		if (x % this.salesPerInquery == 0) {
+			if (this.manager.getSaleWaitMils() > 0) {
+				// answered now, or later by the QA team's pool
+				this.manager.submitSale(curTime, req);
+			} else if (this.manager.sellHydrant(curTime, req)) {
+				req.end(ResponseType.CONSUMED, curTime, clock.nanoTime());
+			} else {
+				req.end(ResponseType.REJECTED, curTime, clock.nanoTime());
+			}
+		} else if (this.manager.canSellHydrant(curTime, req)) {
+			req.end(ResponseType.TEST_ACCEPT, curTime, clock.nanoTime());
+		} else {
+			req.end(ResponseType.TEST_REJ, curTime, clock.nanoTime());
+		}
+	}
+
+	private static void waitUntil(QAClock clock, long deadlineNanos) {
+		long remaining;
+		while ((remaining = deadlineNanos - clock.nanoTime()) > 0) {
+			if (remaining > SPIN_NANOS) {
+				LockSupport.parkNanos(remaining - SPIN_NANOS);
+			} else {
+				Thread.onSpinWait();
+			}
+		}
+	}
+
+	/**
+	 * The outcome of one run. Latencies are from each request's intended send
+	 * time to its answer, in microseconds.
+	 */
+	public static class Run {
+		private int count;
+		private long scheduleNanos;
+		private long sendNanos = 0;
+		private LatencyHistogram latencyMicros = new LatencyHistogram();
+		private AtomicLongArray types = new AtomicLongArray(ResponseType.values().length);
+		private LongAccumulator maxLagNanos = new LongAccumulator(Long::max, 0);
+
+		private Run(int count, long scheduleNanos) {
+			this.count = count;
+			this.scheduleNanos = scheduleNanos;
+		}
+
+		private void record(Response resp, long latencyNanos) {
+			this.latencyMicros.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+			this.types.incrementAndGet(resp.getResponseType().ordinal());
+		}
+
+		public int getCount() {
+			return this.count;
+		}
+
+		/**
+		 * The rate the schedule asked for, in requests per second.
+		 * 
+		 * @return
+		 */
+		public double getTargetPerSec() {
+			return perSec(this.scheduleNanos);
+		}
+
+		/**
+		 * The rate the requests were actually sent at, in requests per second.
+		 * 
+		 * @return
+		 */
+		public double getAchievedPerSec() {
+			return perSec(this.sendNanos);
+		}
+
+		public long getLatencyPercentileMicros(double fraction) {
+			return this.latencyMicros.getPercentile(fraction);
+		}
+
+		public long getMaxLatencyMicros() {
+			return this.latencyMicros.getMax();
+		}
+
+		/**
+		 * How far behind its schedule the latest request was sent, in
+		 * microseconds.
+		 * 
+		 * @return
+		 */
+		public long getMaxLagMicros() {
+			return TimeUnit.NANOSECONDS.toMicros(this.maxLagNanos.get());
+		}
+
+		public long count(ResponseType type) {
+			return this.types.get(type.ordinal());
+		}
+
+		/**
+		 * True if the p99 latency was above latencyBudgetMicros, or the requests
+		 * were sent at less than 90% of the rate asked for.
+		 * 
+		 * @param latencyBudgetMicros
+		 * @return
+		 */
+		public boolean isSaturated(long latencyBudgetMicros) {
+			return getLatencyPercentileMicros(0.99) > latencyBudgetMicros
+					|| getAchievedPerSec() < 0.9 * getTargetPerSec();
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%s requests, target %.0f/s, achieved %.0f/s, latency p50 %s us p99 %s us max %s us, max lag %s us, %s",
+					String.valueOf(this.count), getTargetPerSec(), getAchievedPerSec(),
+					String.valueOf(getLatencyPercentileMicros(0.50)),
+					String.valueOf(getLatencyPercentileMicros(0.99)),
+					String.valueOf(getMaxLatencyMicros()), String.valueOf(getMaxLagMicros()),
+					Arrays.toString(typeCounts()));
+		}
+
+		private String[] typeCounts() {
+			ResponseType[] types = ResponseType.values();
+			String[] counts = new String[types.length];
+			for (int x = 0; x < types.length; x++) {
+				counts[x] = types[x] + "=" + this.types.get(x);
+			}
+			return counts;
+		}
+
+		private double perSec(long nanos) {
+			return nanos == 0 ? Double.POSITIVE_INFINITY
+					: this.count * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package piddle.sonos.si;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class Main {
+	public static void main(String args[]) throws IOException {
+
+		/*@formatter:off
+		 * 
+		 * Test configuration variables
+		 * 
+		 * numInquiries - number of "requests" sent to the "server" 
+		 * numQAWorkers - the number of pups that are testing hydrants 
+		 * timeToCompleteJobMils - the time it* takes a QA worker to test a hydrant 
+		 * testsPerWindow - the negotiated number of tests a qa worker can perform in a given time period 
+		 * windowLength - the given time period during which only testPerWindow tests can be performed
+		 * salesPerInquery - the number of canSellHydrant calls per sellHydrant call
+		 * 
+		 * Application timescale:
+		 * 
+		 * 10mS in app = 1 min scenario 
+		 * ...
+		 * 50mS   = 5 min
+		 * 600mS  = 1 hr
+		 * 1200mS = 2 hrs
+		 * 
+		 *
+		 *@formatter:on
+		 */
+
+		int numInquiries = 1200;
+		int numQAWorkers = 3;
+		int timeToCompleteJobMils = 50;
+		int testsPerWindow = 5;
+		int windowLength = 600;
+		int salesPerInquery = 5;
+
+		/*@formatter:off
+		 * 
+		 * Other setup variables
+		 * 
+		 * simulate - when true the scenario runs on the virtual clock of a SimulationEngine instead of the wall clock. 
+		 *         workerMode, requestMode and maxConcurThreads are ignored. The run takes milliseconds and the same seed 
+		 *         always gives the same result.
+		 * 
+		 * seed - seeds the random time between requests when simulating
+		 * 
+		 * audit - when true every request's creation and response is appended to a memory mapped AuditJournal in 
+		 *         auditDir (see AuditJournal). Segment files from earlier runs are kept and new ones are added after them.
+		 * 
+		 * saleWaitMils - when above 0 a sale that finds every QA worker busy waits up to this long for one to free up
+		 *         instead of being rejected at once (see QAManager.submitSale). saleWaitCapacity caps how many sales
+		 *         may wait at once.
+		 * 
+		 * selectionPolicy - which free QA worker a sale is given to: FIFO, LIST_ORDER, ROUND_ROBIN, LEAST_RECENTLY_USED,
+		 *         MOST_BUDGET or EARLIEST_BREAK_EXPIRY (see SelectionPolicy, and SelectionPolicyStudy for how they compare).
+		 * 
+		 * flightRecord - when true the QAEvents flight recorder events are recorded for the run and dumped to
+		 *         flightRecordFile, and the sales the recording saw missed are counted by reason. Open the file in
+		 *         JDK Mission Control, or with `jfr print --events piddle.sonos.si.Dispatch`, to see each one.
+		 * 
+		 * workerMode - how the QA team's threadpool runs tasks: FIXED, VIRTUAL, WORK_STEALING, LOCK_FREE, INLINE or
+		 *         ADAPTIVE (see ExecutorMode). ADAPTIVE sizes the pool itself, starting from maxConcurThreads, and the
+		 *         changes it made are printed with the worker stats.
+		 * 
+		 * openLoopPerSec - when above 0 the requests are sent open loop by a LoadGenerator instead of by runTest: 
+		 *         Poisson arrivals at this many per second from loadThreads sender threads, with latency measured from 
+		 *         each request's intended send time. requestMode is then ignored.
+		 * 
+		 * requestMode - how the request threadpool runs tasks. FIXED sends the requests one after another from a single 
+		 *         thread. VIRTUAL gives each simulated user its own virtual thread, so every request sleeps and fires 
+		 *         concurrently.
+		 * 
+		 * maxConcurThreads - The number of threads the application can use. There are
+		 *    two default threads taken up by the test framework: the main thread, and the
+		 *    thread that creates all of the requests. Rule of thumb is that thread count
+		 *    should be numCores or numCores+1 to avoid resource thrashing. On my 4 core machine,
+		 *    there are 2 cores unused by the test harness, essentially making it a 2 core
+		 *    machine from the application's standpoint. Running the app several times, i
+		 *    got the best performance when i gave the application 3 threads, which is the
+		 *    number of unused cores plus 1.
+		 * 
+		 * QAManager - manages the QA team members. Also implements the canSellHydrant and sellHydrant methods
+		 * 
+		 * requests - an array that contains all of the "requests" made to the "server." Its really just a wrapper for a CompleatableFuture
+		 * 
+		 * exec - the threadpool used by the test harness (note this is NOT the threadpool used by the QAManager and the QA team members). 
+		 *         I specifically wanted two separate threadpools so that i didnt run into deadlock issues. If the threadpool responsible 
+		 *         for making threads was shared with the QAWorkers, it is possible the QA workers would consume all the threads and make 
+		 *         request submission impossible. Likewise, its possible that request loop would consume all the threads and QAWorkers wouldnt
+		 *         be able to perform any test jobs. Both of these situations could lead to a deadlock. 
+		 * 
+		 * @formatter:on
+		 */
+		boolean simulate = false;
+		long seed = 42;
+		boolean audit = false;
+		Path auditDir = Paths.get("audit");
+		int saleWaitMils = 0;
+		int saleWaitCapacity = 64;
+		SelectionPolicy selectionPolicy = SelectionPolicy.FIFO;
+		boolean flightRecord = false;
+		Path flightRecordFile = Paths.get("qa-team.jfr");
+		ExecutorMode workerMode = ExecutorMode.FIXED;
+		ExecutorMode requestMode = ExecutorMode.FIXED;
+		double openLoopPerSec = 0;
+		int loadThreads = 4;
+		int maxConcurThreads = Runtime.getRuntime().availableProcessors() - 1;
+
+		QAManager manager = null;
+		InvariantVerifier verifier = new InvariantVerifier(timeToCompleteJobMils, testsPerWindow,
+				windowLength);
+		ResponseLog log = new ResponseLog(numInquiries);
+		AuditJournal journal = audit ? new AuditJournal(auditDir, 64 << 20) : null;
+
+		Recording recording = null;
+		if (flightRecord) {
+			recording = new Recording();
+			QAEvents.enable(recording);
+			recording.start();
+		}
+
+		LoadGenerator.Run loadRun = null;
+		long startNanos = System.nanoTime();
+		if (simulate) {
+			// the simulation answers requests one at a time, so nothing but the log
+			// outlives a request
+			SimulationEngine engine = new SimulationEngine(numQAWorkers, timeToCompleteJobMils,
+					testsPerWindow, windowLength, salesPerInquery, seed);
+			engine.setJournal(journal);
+			engine.setSaleWait(saleWaitMils, saleWaitCapacity);
+			engine.setSelectionPolicy(selectionPolicy);
+			engine.run(numInquiries, req -> {
+				verifier.accept(req.getResponse());
+				log.append(req.getResponse());
+			});
+		} else {
+			manager = new QAManager(numQAWorkers, maxConcurThreads, workerMode,
+					timeToCompleteJobMils, testsPerWindow, windowLength);
+			manager.setSaleWait(saleWaitMils, saleWaitCapacity);
+			manager.setSelectionPolicy(selectionPolicy);
+			if (openLoopPerSec > 0) {
+				// returns once every request has been answered
+				LoadGenerator generator = new LoadGenerator(manager, loadThreads, salesPerInquery);
+				generator.setJournal(journal);
+				loadRun = generator.run(LoadGenerator.poisson(openLoopPerSec, seed), numInquiries,
+						resp -> {
+							verifier.accept(resp);
+							log.append(resp);
+						});
+			} else {
+				ExecutorService exec = requestMode.create(1);
+				ArrayList<Request> requests = runTest(numInquiries, exec, manager, salesPerInquery,
+						verifier, log, journal);
+				exec.shutdown();
+
+				// Wait for all the requests to be answered (i.e., join the futures)
+				requests.forEach(Request::checkResponse);
+			}
+		}
+		long elapsedMils = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+		// sort the responses by time they were sent
+		log.sortByTime();
+
+		// the verifier checked every response as it was answered
+		assert verifier
+				.isTestLengthRespected() : "Found sales or button-show action that occured while QA was busy";
+		assert verifier.isBreaksRespected() : "QA member did not take the breaks he was owed.";
+
+		long attendedInqueries = log.count(ResponseType.TEST_ACCEPT);
+
+		long attendedSales = log.count(ResponseType.CONSUMED);
+
+		System.out.println("//////////////////Sales Stats///////////////////////////");
+		System.out.println(String.format("Total Sales requests: %s",
+				String.valueOf(numInquiries / salesPerInquery)));
+		System.out.println(
+				String.format("Num attended Sales requests: %s", String.valueOf(attendedSales)));
+
+		// one pass over the responses produces both the missed sale and the missed
+		// inquiry reports
+		MissedRequestAnalyzer.Report missed = new MissedRequestAnalyzer(timeToCompleteJobMils,
+				testsPerWindow, windowLength).analyze(log);
+		missed.printMissedSales();
+
+		System.out.println("");
+		System.out.println("//////////////////Inquery Stats/////////////////////////");
+		System.out.println(String.format("Total sales inqueries: %s",
+				String.valueOf(numInquiries - numInquiries / salesPerInquery)));
+		System.out.println(String.format("Num inqueries shown buy button: %s",
+				String.valueOf(attendedInqueries)));
+
+		missed.printMissedInqueries();
+
+		System.out.println("");
+		System.out.println("//////////////////Worker Stats//////////////////////////");
+		if (simulate) {
+			System.out.println(String.format("Simulated with seed %s", String.valueOf(seed)));
+		} else if (loadRun != null) {
+			System.out.println(String.format("Worker mode %s, open loop load: %s", workerMode, loadRun));
+		} else {
+			System.out.println(
+					String.format("Worker mode %s, request mode %s", workerMode, requestMode));
+		}
+		System.out.println(String.format("Requests answered in %s milisecond (%s requests/sec)",
+				String.valueOf(elapsedMils),
+				String.valueOf(numInquiries * 1000L / Math.max(1, elapsedMils))));
+
+		if (manager != null) {
+			System.out.println(String.format("Mean pool submission latency: %s nanosecond",
+					String.valueOf(manager.getMeanSubmitNanos())));
+			System.out.println(String.format("Mean test completion jitter: %.3f milisecond",
+					manager.getMeanCompletionJitterMils()));
+			System.out.println(String.format("Max test completion jitter: %.3f milisecond",
+					manager.getMaxCompletionJitterMils()));
+			for (AdaptiveExecutor.Decision decision : manager.getPoolDecisions()) {
+				System.out.println(String.format("Pool resized at %s", decision));
+			}
+			if (saleWaitMils > 0) {
+				System.out.println(String.format(
+						"Sales consumed after waiting: %s (mean wait %.1f milisecond)",
+						String.valueOf(manager.getWaitedSales()), manager.getMeanSaleWaitMils()));
+			}
+		}
+
+		System.out.println("");
+		System.out.println("//////////////////Metrics///////////////////////////////");
+		System.out.print(MetricsRegistry.getInstance().getSnapshot());
+
+		if (manager != null) {
+			manager.shutDown();
+		}
+
+		if (recording != null) {
+			recording.stop();
+			recording.dump(flightRecordFile);
+			recording.close();
+			Map<String, Long> missedByReason = new TreeMap<String, Long>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(flightRecordFile)) {
+				if (event.getEventType().getName().equals("piddle.sonos.si.Dispatch")
+						&& !event.getString("operation").startsWith("inquiry")
+						&& event.getString("missReason") != null) {
+					missedByReason.merge(event.getString("missReason"),
+							(long) (event.getInt("requests") - event.getInt("answered")), Long::sum);
+				}
+			}
+			System.out.println(String.format("Flight recording %s: missed sales by reason %s",
+					flightRecordFile.toAbsolutePath(), missedByReason));
+		}
+
+		if (journal != null) {
+			journal.close();
+			long records = 0;
+			for (Path segment : journal.getSegments()) {
+				records += AuditJournal.scan(segment, (requestId, event, time, worker, type) -> {
+				});
+			}
+			System.out.println(String.format("Audit journal %s holds %s records",
+					auditDir.toAbsolutePath(), String.valueOf(records)));
+		}
+	}
+
+	/**
+	 * Generates "requests" that are sent to the server. sellHydrant calls are made
+	 * once per salesPerInquery number of canSellHydrant calls
+	 * 
+	 * This method uses the exec threadpool, anonymous functions, and random-time
+	 * sleep to send "requests" asynchronously at random intervals.
+	 * 
+	 * Every request is handed to the verifier and recorded in the log the moment
+	 * it is answered.
+	 * 
+	 * @param numSales
+	 * @param exec
+	 * @param manager
+	 * @param verifier
+	 * @param log
+	 * @param journal
+	 *            journals every request, or null
+	 * @return
+	 */
+	public static ArrayList<Request> runTest(int numSales, ExecutorService exec, QAManager manager,
+			int salesPerInquery, InvariantVerifier verifier, ResponseLog log, AuditJournal journal) {
+
+		ArrayList<Request> requests = new ArrayList<Request>();
+		QAClock clock = manager.getClock();
+
+		for (int x = 0; x < numSales; x++) {
+
+			Request req = journal == null ? new Request()
+					: new Request(journal, clock.currentTimeMillis());
+			req.onComplete(verifier::accept);
+			req.onComplete(log::append);
+			requests.add(req);
+
+			// sellHydrant counts against qa worker capacity
+			if (x % salesPerInquery == 0) {
+				exec.execute(() -> {
+					try {
+						// simulate random user access by sleeping each requesting thread for a
+						// random amount of time
+						int randomNum = ThreadLocalRandom.current().nextInt(1, 6);
+						TimeUnit.MILLISECONDS.sleep(randomNum);
+						long curTime = clock.currentTimeMillis();
+						req.setSentTime(curTime);
+
+						if (manager.getSaleWaitMils() > 0) {
+							// answered now, or later by the QA team's pool
+							manager.submitSale(curTime, req);
+						} else if (manager.sellHydrant(curTime, req)) {
+							req.end(ResponseType.CONSUMED, curTime, clock.nanoTime());
+						} else {
+							req.end(ResponseType.REJECTED, curTime, clock.nanoTime());
+						}
+					} catch (InterruptedException e) {
+						req.error(e, clock.currentTimeMillis());
+					}
+
+				});
+			} else {
+				// canSellHydrant just checks to see if the qa workers are busy
+				exec.execute(() -> {
+					try {
+						// simulate random user access by sleeping each requesting thread for a
+						// random amount of time
+						int randomNum = ThreadLocalRandom.current().nextInt(1, 6);
+						TimeUnit.MILLISECONDS.sleep(randomNum);
+						long curTime = clock.currentTimeMillis();
+						req.setSentTime(curTime);
+
+						if (manager.canSellHydrant(curTime, req)) {
+							req.end(ResponseType.TEST_ACCEPT, curTime, clock.nanoTime());
+						} else {
+							req.end(ResponseType.TEST_REJ, curTime, clock.nanoTime());
+						}
+					} catch (InterruptedException e) {
+						req.error(e, clock.currentTimeMillis());
+					}
+
+				});
+			}
+
+		}
+		return requests;
+	}
+
+}
@@ -0,0 +1,213 @@
+package piddle.sonos.si;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The always-on metrics of the QA system, shared by every QAManager in the
+ * JVM.
+ * 
+ * @formatter:off
+ * 
+ * 				responses          -- a striped LongAdder per ResponseType, counted by
+ *                                      Request.end and Request.error.
+ * 
+ *                latency            -- a LatencyHistogram of the time from a request
+ *                                      being sent to its response, in milliseconds.
+ *                                      Only requests whose sender set a sent time.
+ * 
+ *                worker busy/break/idle time -- read from each QATeamMember of every
+ *                                      live QAManager, in milliseconds.
+ * 
+ *                queue depth        -- read from each live ThreadSafeThreadPoolManager.
+ * 
+ * @formatter:on
+ * 
+ * The dispatch path only ever does a LongAdder increment and a histogram
+ * increment per response. Workers keep their own time counters, and workers and
+ * pools are only walked when the metrics are read.
+ * 
+ * The registry is published over JMX as piddle.sonos.si:type=Metrics and can
+ * be printed with getSnapshot, one "name{labels} value" line per metric.
+ * 
+ * @author Scott
+ *
+ */
+public class MetricsRegistry implements MetricsRegistryMXBean {
+
+	private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+	private LongAdder[] responses = new LongAdder[ResponseType.values().length];
+	private LatencyHistogram latency = new LatencyHistogram();
+	private Map<QATeamMember, String> workers = new ConcurrentHashMap<QATeamMember, String>();
+	private Map<ThreadSafeThreadPoolManager, String> pools = new ConcurrentHashMap<ThreadSafeThreadPoolManager, String>();
+	private AtomicInteger nextPool = new AtomicInteger(0);
+
+	private MetricsRegistry() {
+		for (int x = 0; x < this.responses.length; x++) {
+			this.responses[x] = new LongAdder();
+		}
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("piddle.sonos.si:type=Metrics"));
+		} catch (JMException e) {
+			System.out.println(
+					String.format("Warning: metrics are not available over JMX (%s)", e.getMessage()));
+		}
+	}
+
+	public static MetricsRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Counts one response.
+	 * 
+	 * @param type
+	 * @param latencyMils
+	 *            the time from the request being sent to the response, or a
+	 *            negative number if unknown
+	 */
+	public void recordResponse(ResponseType type, long latencyMils) {
+		this.responses[type.ordinal()].increment();
+		if (latencyMils >= 0) {
+			this.latency.record(latencyMils);
+		}
+	}
+
+	public void addWorker(QATeamMember member, String name) {
+		this.workers.put(member, name);
+	}
+
+	public void removeWorker(QATeamMember member) {
+		this.workers.remove(member);
+	}
+
+	public void addPool(ThreadSafeThreadPoolManager pool) {
+		this.pools.put(pool, String.format("pool-%s", String.valueOf(this.nextPool.getAndIncrement())));
+	}
+
+	public void removePool(ThreadSafeThreadPoolManager pool) {
+		this.pools.remove(pool);
+	}
+
+	public long getResponses(ResponseType type) {
+		return this.responses[type.ordinal()].sum();
+	}
+
+	public LatencyHistogram getLatency() {
+		return this.latency;
+	}
+
+	@Override
+	public long getConsumed() {
+		return getResponses(ResponseType.CONSUMED);
+	}
+
+	@Override
+	public long getRejected() {
+		return getResponses(ResponseType.REJECTED);
+	}
+
+	@Override
+	public long getTestAccepted() {
+		return getResponses(ResponseType.TEST_ACCEPT);
+	}
+
+	@Override
+	public long getTestRejected() {
+		return getResponses(ResponseType.TEST_REJ);
+	}
+
+	@Override
+	public long getErrors() {
+		return getResponses(ResponseType.ERROR);
+	}
+
+	@Override
+	public long getLatencyP50Mils() {
+		return this.latency.getPercentile(0.5);
+	}
+
+	@Override
+	public long getLatencyP99Mils() {
+		return this.latency.getPercentile(0.99);
+	}
+
+	@Override
+	public long getLatencyP999Mils() {
+		return this.latency.getPercentile(0.999);
+	}
+
+	@Override
+	public long getLatencyMaxMils() {
+		return this.latency.getMax();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		int depth = 0;
+		for (ThreadSafeThreadPoolManager pool : this.pools.keySet()) {
+			depth += pool.getQueueDepth();
+		}
+		return depth;
+	}
+
+	@Override
+	public int getWorkerCount() {
+		return this.workers.size();
+	}
+
+	@Override
+	public String getSnapshot() {
+		StringBuilder out = new StringBuilder();
+		for (ResponseType type : ResponseType.values()) {
+			line(out, "responses_total", "type", type.name(), getResponses(type));
+		}
+		line(out, "response_latency_mils", "quantile", "0.5", getLatencyP50Mils());
+		line(out, "response_latency_mils", "quantile", "0.99", getLatencyP99Mils());
+		line(out, "response_latency_mils", "quantile", "0.999", getLatencyP999Mils());
+		line(out, "response_latency_mils", "quantile", "1", getLatencyMaxMils());
+		line(out, "response_latency_mils_count", null, null, this.latency.getCount());
+
+		for (Map.Entry<QATeamMember, String> worker : this.workers.entrySet()) {
+			QATeamMember member = worker.getKey();
+			long now = member.currentTimeMillis();
+			line(out, "worker_busy_mils", "worker", worker.getValue(), member.getBusyMils());
+			line(out, "worker_break_mils", "worker", worker.getValue(), member.getBreakMils());
+			line(out, "worker_idle_mils", "worker", worker.getValue(), member.getIdleMils(now));
+		}
+		for (Map.Entry<ThreadSafeThreadPoolManager, String> pool : this.pools.entrySet()) {
+			line(out, "executor_queue_depth", "pool", pool.getValue(), pool.getKey().getQueueDepth());
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Zeroes the response counters and the latency histogram. Workers and pools
+	 * keep their own time counters and are not affected.
+	 */
+	@Override
+	public void reset() {
+		for (LongAdder adder : this.responses) {
+			adder.reset();
+		}
+		this.latency.reset();
+	}
+
+	private static void line(StringBuilder out, String name, String label, String labelValue,
+			long value) {
+		out.append(name);
+		if (label != null) {
+			out.append('{').append(label).append("=\"").append(labelValue).append("\"}");
+		}
+		out.append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,42 @@
+package piddle.sonos.si;
+
+/**
+ * The JMX view of the MetricsRegistry, registered as
+ * piddle.sonos.si:type=Metrics.
+ * 
+ * @author Scott
+ *
+ */
+public interface MetricsRegistryMXBean {
+
+	public long getConsumed();
+
+	public long getRejected();
+
+	public long getTestAccepted();
+
+	public long getTestRejected();
+
+	public long getErrors();
+
+	public long getLatencyP50Mils();
+
+	public long getLatencyP99Mils();
+
+	public long getLatencyP999Mils();
+
+	public long getLatencyMaxMils();
+
+	public int getQueueDepth();
+
+	public int getWorkerCount();
+
+	/**
+	 * Every metric in the text snapshot format.
+	 * 
+	 * @return
+	 */
+	public String getSnapshot();
+
+	public void reset();
+}
@@ -0,0 +1,336 @@
+package piddle.sonos.si;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the rejected sales (REJECTED) and rejected inquiries (TEST_REJ) that a
+ * QA worker could have taken had the system been 100% efficient.
+ * 
+ * There is some wasted time in generating requests, testing conditionals, and
+ * context switching between threads, so not every QA worker will finish a QA
+ * test in exactly timeToCompleteJobMils. A rejection is counted as missed by a
+ * worker if, at the time of the rejection, the worker's last sale was more than
+ * timeToCompleteJobMils ago and the worker had tests left in its window.
+ * 
+ * Times are compared on the responses' nanoTime when both responses have one,
+ * so a sale and a rejection in the same millisecond are taken in the order
+ * they happened, and a gap of timeToCompleteJobMils plus a fraction of a
+ * millisecond counts as more than timeToCompleteJobMils. Where either response
+ * has no nanoTime the comparison falls back to whole milliseconds.
+ * 
+ * The analysis reads a ResponseLog sorted by time and makes a single pass over
+ * it, splitting them into one array of consumed sale times per worker and
+ * one array each of rejected sale and rejected inquiry times, each with a
+ * parallel array of nanoTimes. Those arrays are
+ * already in time order, so each worker's sweep is a merge of its own sales
+ * with the two rejection arrays, and nothing is sorted again. Each worker's
+ * window is a ring of its last testsPerWindow sales. The per worker sweeps are
+ * independent and run in parallel on the common fork/join pool.
+ * 
+ * Both the missed sale and the missed inquiry reports come out of the same
+ * sweep.
+ * 
+ * @author Scott
+ *
+ */
+public class MissedRequestAnalyzer {
+
+	private int timeToCompleteJobMils = 0;
+	private int testsPerWindow = 0;
+	private int windowLength = 0;
+
+	public MissedRequestAnalyzer(int timeToCompleteJobMils, int testsPerWindow, int windowLength) {
+		this.timeToCompleteJobMils = timeToCompleteJobMils;
+		this.testsPerWindow = testsPerWindow;
+		this.windowLength = windowLength;
+	}
+
+	/**
+	 * @param log
+	 *            every response of the run, sorted by time
+	 * @return
+	 */
+	public Report analyze(ResponseLog log) {
+		// indexed by QA team member index
+		List<Times> consumedByWorker = new ArrayList<Times>();
+		Times rejectedSales = new Times();
+		Times rejectedInquiries = new Times();
+
+		for (int x = 0, n = log.size(); x < n; x++) {
+			switch (log.getResponseType(x)) {
+			case CONSUMED:
+				int worker = log.getWorker(x);
+				while (consumedByWorker.size() <= worker) {
+					consumedByWorker.add(null);
+				}
+				if (consumedByWorker.get(worker) == null) {
+					consumedByWorker.set(worker, new Times());
+				}
+				consumedByWorker.get(worker).add(log.getTime(x), log.getNanoTime(x));
+				break;
+			case REJECTED:
+				rejectedSales.add(log.getTime(x), log.getNanoTime(x));
+				break;
+			case TEST_REJ:
+				rejectedInquiries.add(log.getTime(x), log.getNanoTime(x));
+				break;
+			default:
+				break;
+			}
+		}
+
+		rejectedSales.seal();
+		rejectedInquiries.seal();
+		List<Sweep> sweeps = new ArrayList<Sweep>();
+		for (int worker = 0; worker < consumedByWorker.size(); worker++) {
+			if (consumedByWorker.get(worker) != null) {
+				sweeps.add(new Sweep(worker, consumedByWorker.get(worker).seal(), rejectedSales,
+						rejectedInquiries));
+			}
+		}
+		ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(sweeps);
+			}
+		});
+
+		return new Report(sweeps);
+	}
+
+	/**
+	 * One worker's sweep. Merges the worker's sales with both rejection arrays in
+	 * time order. A sale at the same time as a rejection counts first.
+	 */
+	private class Sweep extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private int worker;
+		private Times consumed;
+		private Times rejectedSales;
+		private Times rejectedInquiries;
+
+		private Tally sales = new Tally();
+		private Tally inquiries = new Tally();
+
+		Sweep(int worker, Times consumed, Times rejectedSales, Times rejectedInquiries) {
+			this.worker = worker;
+			this.consumed = consumed;
+			this.rejectedSales = rejectedSales;
+			this.rejectedInquiries = rejectedInquiries;
+		}
+
+		@Override
+		protected void compute() {
+			long jobNanos = TimeUnit.MILLISECONDS.toNanos(timeToCompleteJobMils);
+			long windowNanos = TimeUnit.MILLISECONDS.toNanos(windowLength);
+			long[] consumedMils = this.consumed.mils;
+			long[] consumedNanos = this.consumed.nanos;
+			long[] saleMils = this.rejectedSales.mils;
+			long[] saleNanos = this.rejectedSales.nanos;
+			long[] inquiryMils = this.rejectedInquiries.mils;
+			long[] inquiryNanos = this.rejectedInquiries.nanos;
+
+			long[] windowMils = new long[Math.max(1, testsPerWindow)];
+			long[] windowNanoTimes = new long[windowMils.length];
+			int next = 0;
+			int size = 0;
+			int c = 0;
+			int s = 0;
+			int i = 0;
+
+			while (s < saleMils.length || i < inquiryMils.length) {
+				boolean saleFirst = i == inquiryMils.length || (s < saleMils.length
+						&& notAfter(saleMils[s], saleNanos[s], inquiryMils[i], inquiryNanos[i]));
+				long rejection = saleFirst ? saleMils[s] : inquiryMils[i];
+				long rejectionNanos = saleFirst ? saleNanos[s] : inquiryNanos[i];
+
+				if (c < consumedMils.length
+						&& notAfter(consumedMils[c], consumedNanos[c], rejection, rejectionNanos)) {
+					windowMils[next] = consumedMils[c];
+					windowNanoTimes[next] = consumedNanos[c++];
+					next = (next + 1) % windowMils.length;
+					size = Math.min(size + 1, windowMils.length);
+					continue;
+				}
+
+				Tally tally;
+				if (saleFirst) {
+					tally = this.sales;
+					s++;
+				} else {
+					tally = this.inquiries;
+					i++;
+				}
+
+				if (size == 0) {
+					tally.beforeFirstSale++;
+					continue;
+				}
+
+				int latest = (next + windowMils.length - 1) % windowMils.length;
+				int oldest = next;
+				long sinceLatest = elapsedNanos(windowMils[latest], windowNanoTimes[latest],
+						rejection, rejectionNanos);
+				long sinceOldest = elapsedNanos(windowMils[oldest], windowNanoTimes[oldest],
+						rejection, rejectionNanos);
+				if (sinceLatest > jobNanos && (size < testsPerWindow || sinceOldest > windowNanos)) {
+					tally.missed++;
+					// Calculates the amount of time beyond the timeToCompleteJobMils that the
+					// QA thread was still locked.
+					tally.inefficiencyNanos += sinceLatest - jobNanos;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Whether the response at fromMils came no later than the one at toMils,
+	 * going by their nanoTimes within the same millisecond when both have one.
+	 * 
+	 * @param fromMils
+	 * @param fromNanos
+	 * @param toMils
+	 * @param toNanos
+	 * @return
+	 */
+	private static boolean notAfter(long fromMils, long fromNanos, long toMils, long toNanos) {
+		if (fromMils != toMils || fromNanos == Long.MIN_VALUE || toNanos == Long.MIN_VALUE) {
+			return fromMils <= toMils;
+		}
+		return fromNanos <= toNanos;
+	}
+
+	/**
+	 * The nanoseconds between two responses, on their nanoTimes if both have one,
+	 * otherwise on their millisecond times.
+	 * 
+	 * @param fromMils
+	 * @param fromNanos
+	 * @param toMils
+	 * @param toNanos
+	 * @return
+	 */
+	private static long elapsedNanos(long fromMils, long fromNanos, long toMils, long toNanos) {
+		if (fromNanos == Long.MIN_VALUE || toNanos == Long.MIN_VALUE) {
+			return TimeUnit.MILLISECONDS.toNanos(toMils - fromMils);
+		}
+		return toNanos - fromNanos;
+	}
+
+	private static class Tally {
+		private long missed = 0;
+		private long inefficiencyNanos = 0;
+		private long beforeFirstSale = 0;
+	}
+
+	/**
+	 * The outcome of one analysis. Prints in the same format Main always has.
+	 */
+	public static class Report {
+		private List<Sweep> sweeps;
+
+		private Report(List<Sweep> sweeps) {
+			this.sweeps = sweeps;
+		}
+
+		public long getMissedSales() {
+			return this.sweeps.stream().mapToLong(sweep -> sweep.sales.missed).sum();
+		}
+
+		public long getMissedInqueries() {
+			return this.sweeps.stream().mapToLong(sweep -> sweep.inquiries.missed).sum();
+		}
+
+		public void printMissedSales() {
+			print("sales", "sale", true);
+		}
+
+		public void printMissedInqueries() {
+			print("inqueries", "inquery", false);
+		}
+
+		private void print(String plural, String singular, boolean sales) {
+			long totalAvgInefficiency = 0;
+			long totalMissed = 0;
+
+			for (Sweep sweep : this.sweeps) {
+				Tally tally = sales ? sweep.sales : sweep.inquiries;
+
+				if (tally.beforeFirstSale != 0) {
+					System.out.println(String.format(
+							"QA Member %s: %s %s rejected before the member made any sale",
+							String.valueOf(sweep.worker), String.valueOf(tally.beforeFirstSale), plural));
+				}
+				System.out.println(String.format("QA Member %s missed %s due to code inefficiency %s",
+						String.valueOf(sweep.worker), plural, String.valueOf(tally.missed)));
+				if (tally.missed != 0) {
+					long avgInefficiency = TimeUnit.NANOSECONDS
+							.toMillis(tally.inefficiencyNanos / tally.missed);
+					System.out.println(String.format(
+							"QA Member %s average inefficiency causing missed %s: %s milisecond",
+							String.valueOf(sweep.worker), singular, String.valueOf(avgInefficiency)));
+					totalAvgInefficiency += avgInefficiency;
+				}
+				totalMissed += tally.missed;
+			}
+
+			System.out.println(String.format("Total missed %s due to code inefficiency %s", plural,
+					String.valueOf(totalMissed)));
+			if (totalMissed != 0) {
+				System.out.println(String.format("Average inefficiency causing missed %s: %s milisecond",
+						singular, String.valueOf(totalAvgInefficiency / this.sweeps.size())));
+			}
+		}
+	}
+
+	/**
+	 * The millisecond times and nanoTimes of one kind of response, in time order.
+	 * Collected into lists, then sealed into arrays the sweeps share.
+	 */
+	private static class Times {
+		private LongList milList = new LongList();
+		private LongList nanoList = new LongList();
+		private long[] mils = null;
+		private long[] nanos = null;
+
+		void add(long time, long nanoTime) {
+			this.milList.add(time);
+			this.nanoList.add(nanoTime);
+		}
+
+		Times seal() {
+			this.mils = this.milList.toArray();
+			this.nanos = this.nanoList.toArray();
+			this.milList = null;
+			this.nanoList = null;
+			return this;
+		}
+	}
+
+	/**
+	 * A growable array of primitive longs.
+	 */
+	private static class LongList {
+		private long[] values = new long[16];
+		private int size = 0;
+
+		void add(long value) {
+			if (this.size == this.values.length) {
+				this.values = Arrays.copyOf(this.values, this.size * 2);
+			}
+			this.values[this.size++] = value;
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(this.values, this.size);
+		}
+	}
+}
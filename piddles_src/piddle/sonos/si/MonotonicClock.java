@@ -0,0 +1,52 @@
+package piddle.sonos.si;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A QAClock on System.nanoTime.
+ * 
+ * Main used to stamp requests with ZonedDateTime.now().toInstant(), which
+ * builds a zone lookup, a LocalDateTime and two Instants to read one long, and
+ * the QA team's timer read System.currentTimeMillis. Both follow the wall
+ * clock, so an NTP correction can make a request look older than the test
+ * that came before it, and a worker whose break has ended look on break again.
+ * 
+ * This clock reads the epoch millisecond once, when it is created, and from
+ * then on counts milliseconds with System.nanoTime. Its times line up with the
+ * wall clock at the start and drift from it only as much as the wall clock is
+ * corrected, and they never go backwards.
+ * 
+ * @author Scott
+ *
+ */
+public class MonotonicClock implements QAClock {
+
+	private static final MonotonicClock instance = new MonotonicClock();
+
+	private long originMils = 0;
+	private long originNanos = 0;
+
+	public MonotonicClock() {
+		this.originMils = System.currentTimeMillis();
+		this.originNanos = System.nanoTime();
+	}
+
+	/**
+	 * The clock shared by everything that does not need its own.
+	 * 
+	 * @return
+	 */
+	public static MonotonicClock getInstance() {
+		return instance;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return this.originMils + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.originNanos);
+	}
+
+	@Override
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+}
@@ -0,0 +1,49 @@
+package piddle.sonos.si;
+
+/**
+ * The clock the QA team reads the time from. Every curTime handed to a
+ * QAManager, and every time a QATeamMember or a Response records, should come
+ * from the same QAClock, usually the TaskTimer the team's tests run on.
+ * 
+ * @formatter:off
+ * 
+ * 				MonotonicClock -- System.nanoTime, with milliseconds counted from the
+ *                                epoch millisecond it was created at. Never steps
+ *                                backwards when the wall clock is corrected, and
+ *                                costs about as much as one System.nanoTime call.
+ * 
+ *                CachedClock    -- a reading of another clock refreshed once per tick
+ *                                by a background thread. Reading it is one volatile
+ *                                load, at the price of being up to a tick behind.
+ *                                Too stale to answer requests with, so only for
+ *                                stamping metrics and logs.
+ * 
+ *                SimulationEngine -- virtual time.
+ * 
+ * @formatter:on
+ * 
+ * The QA team's rules are in milliseconds, so currentTimeMillis is the time
+ * dispatch works in. nanoTime is the same clock at a finer resolution, for
+ * ordering and timing events that fall within one millisecond. Neither
+ * allocates.
+ * 
+ * @author Scott
+ *
+ */
+public interface QAClock {
+
+	/**
+	 * The time in milliseconds. Never decreases.
+	 * 
+	 * @return
+	 */
+	public long currentTimeMillis();
+
+	/**
+	 * The time in nanoseconds, from an arbitrary origin. Only differences between
+	 * two readings of the same clock mean anything. Never decreases.
+	 * 
+	 * @return
+	 */
+	public long nanoTime();
+}
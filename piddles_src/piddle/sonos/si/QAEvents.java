@@ -0,0 +1,297 @@
+package piddle.sonos.si;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for the QA team, so that a recording can explain
+ * every missed sale.
+ * 
+ * @formatter:off
+ * 
+ * 				Dispatch      -- one call of sellHydrant(s), canSellHydrant(s), a hand off
+ *                               to a waiting sale or a waiting sale's expiry. Says how
+ *                               many members were polled from the AvailabilityIndex and,
+ *                               when a request went unanswered, why: every member was
+ *                               testing (busy), the first free member was on break
+ *                               (break), or a member was free but another request thread
+ *                               got it first (contention).
+ * 
+ *                TestStarted   -- a member started a test.
+ * 
+ *                TestCompleted -- a member finished a test, with the scheduled and the
+ *                                 actual length. A test that runs long means its
+ *                                 completion waited for a pool thread.
+ * 
+ *                BreakStarted  -- a member finished a test with its window full.
+ * 
+ *                BreakEnded    -- a dispatch found the member's break over and made it
+ *                                 available again, with how late that was.
+ * 
+ *                Submit        -- a task handed to the QA team's pool. The event's
+ *                                 duration is the submission latency.
+ * 
+ * @formatter:on
+ * 
+ * Times such as a test's start are read from the QA team's clock, which is the
+ * virtual clock when running on a SimulationEngine, so they are plain
+ * milliseconds rather than timestamps.
+ * 
+ * Every event is disabled by default, and is turned on with enable or with a
+ * .jfc settings file for -XX:StartFlightRecording. Loading the first event
+ * class starts up the flight recorder, which takes a few hundred milliseconds
+ * even with no recording, so until the flight recorder has been started by
+ * someone else the helpers below do nothing and no event class is loaded. After
+ * that an event is only filled in inside shouldCommit, so while a recording
+ * does not have it enabled the JIT drops the event and its allocation.
+ * 
+ * @author Scott
+ *
+ */
+public class QAEvents {
+
+	private static volatile boolean on = false;
+
+	static {
+		// called at once if the flight recorder is already running
+		FlightRecorder.addListener(new FlightRecorderListener() {
+			@Override
+			public void recorderInitialized(FlightRecorder recorder) {
+				on = true;
+			}
+		});
+	}
+
+	/**
+	 * Turns every QA event on in recording.
+	 * 
+	 * @param recording
+	 */
+	public static void enable(Recording recording) {
+		recording.enable(Dispatch.class);
+		recording.enable(TestStarted.class);
+		recording.enable(TestCompleted.class);
+		recording.enable(BreakStarted.class);
+		recording.enable(BreakEnded.class);
+		recording.enable(Submit.class);
+	}
+
+	/**
+	 * Returns a started Dispatch event, or null if the flight recorder is not
+	 * running.
+	 * 
+	 * @return
+	 */
+	static Dispatch beginDispatch() {
+		if (!on) {
+			return null;
+		}
+		Dispatch event = new Dispatch();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Returns a started Submit event, or null if the flight recorder is not
+	 * running.
+	 * 
+	 * @return
+	 */
+	static Submit beginSubmit() {
+		if (!on) {
+			return null;
+		}
+		Submit event = new Submit();
+		event.begin();
+		return event;
+	}
+
+	static void testStarted(int member, long curTime, long scheduledMils) {
+		if (!on) {
+			return;
+		}
+		TestStarted event = new TestStarted();
+		if (event.shouldCommit()) {
+			event.member = member;
+			event.curTime = curTime;
+			event.scheduledMils = scheduledMils;
+			event.commit();
+		}
+	}
+
+	static void testCompleted(int member, long testStart, long scheduledMils, long actualMils) {
+		if (!on) {
+			return;
+		}
+		TestCompleted event = new TestCompleted();
+		if (event.shouldCommit()) {
+			event.member = member;
+			event.testStart = testStart;
+			event.scheduledMils = scheduledMils;
+			event.actualMils = actualMils;
+			event.commit();
+		}
+	}
+
+	static void breakStarted(int member, long curTime, long breakEnd) {
+		if (!on) {
+			return;
+		}
+		BreakStarted event = new BreakStarted();
+		if (event.shouldCommit()) {
+			event.member = member;
+			event.curTime = curTime;
+			event.breakEnd = breakEnd;
+			event.commit();
+		}
+	}
+
+	static void breakEnded(int member, long breakEnd, long noticedAt) {
+		if (!on) {
+			return;
+		}
+		BreakEnded event = new BreakEnded();
+		if (event.shouldCommit()) {
+			event.member = member;
+			event.breakEnd = breakEnd;
+			event.noticedAt = noticedAt;
+			event.commit();
+		}
+	}
+
+	@Name("piddle.sonos.si.Dispatch")
+	@Label("Dispatch")
+	@Category({ "Sonos", "QA Team" })
+	@Description("Requests answered by the QA manager in one call")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class Dispatch extends Event {
+		@Label("Operation")
+		@Description("sell, sellBatch, inquiry, inquiryBatch, handoff or expire")
+		String operation;
+
+		@Label("Clock Time")
+		@Description("The QA team's clock, in milliseconds")
+		long curTime;
+
+		@Label("Requests")
+		int requests;
+
+		@Label("Members Scanned")
+		@Description("Members polled from the availability index")
+		int scanned;
+
+		@Label("Answered")
+		@Description("Requests consumed or accepted")
+		int answered;
+
+		@Label("Miss Reason")
+		@Description("Why the rest went unanswered: busy, break or contention. null if none did")
+		String missReason;
+
+		@Label("Available From")
+		@Description("When the published availability said a member would be free, in milliseconds")
+		long availableFrom;
+	}
+
+	@Name("piddle.sonos.si.TestStarted")
+	@Label("Test Started")
+	@Category({ "Sonos", "QA Team" })
+	@Enabled(false)
+	@StackTrace(false)
+	public static class TestStarted extends Event {
+		@Label("Member")
+		int member;
+
+		@Label("Clock Time")
+		@Description("The QA team's clock, in milliseconds")
+		long curTime;
+
+		@Label("Scheduled Length")
+		@Timespan(Timespan.MILLISECONDS)
+		long scheduledMils;
+	}
+
+	@Name("piddle.sonos.si.TestCompleted")
+	@Label("Test Completed")
+	@Category({ "Sonos", "QA Team" })
+	@Enabled(false)
+	@StackTrace(false)
+	public static class TestCompleted extends Event {
+		@Label("Member")
+		int member;
+
+		@Label("Started At")
+		@Description("The QA team's clock, in milliseconds")
+		long testStart;
+
+		@Label("Scheduled Length")
+		@Timespan(Timespan.MILLISECONDS)
+		long scheduledMils;
+
+		@Label("Actual Length")
+		@Timespan(Timespan.MILLISECONDS)
+		long actualMils;
+	}
+
+	@Name("piddle.sonos.si.BreakStarted")
+	@Label("Break Started")
+	@Category({ "Sonos", "QA Team" })
+	@Enabled(false)
+	@StackTrace(false)
+	public static class BreakStarted extends Event {
+		@Label("Member")
+		int member;
+
+		@Label("Clock Time")
+		@Description("The QA team's clock, in milliseconds")
+		long curTime;
+
+		@Label("Break End")
+		@Description("The last millisecond of the break")
+		long breakEnd;
+	}
+
+	@Name("piddle.sonos.si.BreakEnded")
+	@Label("Break Ended")
+	@Category({ "Sonos", "QA Team" })
+	@Enabled(false)
+	@StackTrace(false)
+	public static class BreakEnded extends Event {
+		@Label("Member")
+		int member;
+
+		@Label("Break End")
+		@Description("The last millisecond of the break")
+		long breakEnd;
+
+		@Label("Noticed At")
+		@Description("The clock time of the dispatch that made the member available again")
+		long noticedAt;
+	}
+
+	@Name("piddle.sonos.si.Submit")
+	@Label("Pool Submit")
+	@Category({ "Sonos", "QA Team" })
+	@Description("A task handed to the QA team's pool")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class Submit extends Event {
+		@Label("Future")
+		@Description("true for submit, false for execute")
+		boolean future;
+
+		@Label("Queue Depth")
+		@Description("Tasks waiting for a pool thread after the submission")
+		int queueDepth;
+	}
+}
@@ -1,6 +1,13 @@
 package piddle.sonos.si;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The QA manager is an entry point to submitting jobs to the QA team.
@@ -8,12 +15,73 @@ import java.util.ArrayList;
  * The manager's main goal is distributing jobs to available QA team members and
  * keeping the threadpool, shared across all QA team members, thread safe.
  * 
+ * Free members are found through an AvailabilityIndex rather than by walking
+ * the team, so dispatch and rejection cost the same for a team of 3 or 3000.
+ * Inquiries only read the index's published Availability snapshot.
+ * 
+ * Members are identified by dense int ids from a WorkerRegistry. The team can
+ * grow and shrink while requests are being served: the team is a copy-on-write
+ * array, so addMember and retireMember copy it under the manager's lock while
+ * dispatch keeps reading the old one without a lock. The constructor adds the
+ * whole starting team with a single copy, since copying once per member would
+ * make a large team quadratic to build. A retired member
+ * finishes the test it is running and is then dropped by the index.
+ * 
+ * sellHydrants and canSellHydrants answer a burst of requests that arrive in
+ * the same millisecond in one call: availability is looked up once for the
+ * whole batch instead of once per request.
+ * 
+ * submitSale is an admission mode for sales, turned on with setSaleWait. A
+ * sale that finds nobody free waits, up to maxWaitMils, in a bounded queue
+ * ordered by deadline instead of being rejected at once. The next member that
+ * finishes a test, or whose break ends, takes the earliest waiting sale
+ * directly. A sale is only REJECTED when its deadline passes or the queue is
+ * full. A sale whose deadline has passed is never handed a member, even if its
+ * expiry has not run yet: the hand off rejects it and moves on to the next.
+ * A member that went on break while nobody was waiting has nothing scheduled
+ * for the end of its break, so a hand off that finds no member free schedules
+ * another for when the first member on break comes back.
+ * 
+ * Callers that pace themselves to the team, such as a QATeamProcessor, read
+ * getCapacity and register a capacity listener, which is run whenever a member
+ * may have become free: when it finishes a test, when the break it finished
+ * the test on ends, and when a member joins.
+ * 
+ * A request that is turned away is told when to come back: its Response's
+ * retryAt is set to getForecast, the earliest time a member is due to be free
+ * and off break, from each busy member's scheduled completion and each member's
+ * break. A caller can then retry once at that time instead of polling. The
+ * forecast is read from the index's published Availability, which is updated
+ * as members start and finish tests, so it costs a rejection one volatile read.
+ * It is a lower bound: a completion can run late, another caller can take the
+ * member first, and a member freed while sales are waiting for one goes to
+ * them.
+ * 
+ * Every dispatch emits a QAEvents.Dispatch flight recorder event, which says
+ * why any request it could not answer was missed. The events are off unless a
+ * recording turns them on.
+ * 
  * @author Scott
  *
  */
 public class QAManager {
 	private ThreadSafeThreadPoolManager exec = null;
-	private ArrayList<QATeamMember> qaTeam = null;
+	private volatile QATeamMember[] qaTeam = new QATeamMember[0];
+	private AvailabilityIndex index = null;
+	private WorkerRegistry registry = null;
+	private int timeToCompleteJobMils = 0;
+	private int testsPerWindow = 0;
+	private int windowLength = 0;
+
+	private int saleWaitMils = 0;
+	private int saleWaitCapacity = 0;
+	private ConcurrentSkipListSet<WaitingSale> waiting = new ConcurrentSkipListSet<WaitingSale>();
+	private AtomicInteger waitingCount = new AtomicInteger(0);
+	private AtomicLong waitingSeq = new AtomicLong(0);
+	private AtomicLong wakeAt = new AtomicLong(Long.MAX_VALUE);
+	private LongAdder waitedSales = new LongAdder();
+	private LongAdder totalWaitMils = new LongAdder();
+	private CopyOnWriteArrayList<Runnable> capacityListeners = new CopyOnWriteArrayList<Runnable>();
 
 	/**
 	 * @param teamSize
@@ -22,15 +90,166 @@ public class QAManager {
 	 */
 	public QAManager(int teamSize, int threadPoolSize, int timeToCompleteJobMils,
 			int testsPerWindow, int windowLength) {
+		this(teamSize, threadPoolSize, ExecutorMode.FIXED, timeToCompleteJobMils, testsPerWindow,
+				windowLength);
+	}
+
+	/**
+	 * @param teamSize
+	 * @param threadPoolSize
+	 * @param mode
+	 *            how the QA team's threadpool runs its tasks
+	 * @param timeToCompleteJobMils
+	 * @param testsPerWindow
+	 * @param windowLength
+	 */
+	public QAManager(int teamSize, int threadPoolSize, ExecutorMode mode,
+			int timeToCompleteJobMils, int testsPerWindow, int windowLength) {
+		this(teamSize, new ThreadSafeThreadPoolManager(threadPoolSize, mode),
+				timeToCompleteJobMils, testsPerWindow, windowLength);
+	}
+
+	/**
+	 * @param teamSize
+	 * @param exec
+	 *            the threadpool shared by the QA team. Shut down along with the
+	 *            manager
+	 * @param timeToCompleteJobMils
+	 * @param testsPerWindow
+	 * @param windowLength
+	 */
+	public QAManager(int teamSize, ThreadSafeThreadPoolManager exec, int timeToCompleteJobMils,
+			int testsPerWindow, int windowLength) {
+		this(teamSize, new WorkerRegistry(), exec, timeToCompleteJobMils, testsPerWindow,
+				windowLength);
+	}
+
+	/**
+	 * @param teamSize
+	 * @param registry
+	 *            hands out the members' ids. Several managers can share one, e.g.
+	 *            the shards of a ShardedQAManager
+	 * @param exec
+	 *            the threadpool shared by the QA team. Shut down along with the
+	 *            manager
+	 * @param timeToCompleteJobMils
+	 * @param testsPerWindow
+	 * @param windowLength
+	 */
+	public QAManager(int teamSize, WorkerRegistry registry, ThreadSafeThreadPoolManager exec,
+			int timeToCompleteJobMils, int testsPerWindow, int windowLength) {
 
-		this.exec = new ThreadSafeThreadPoolManager(threadPoolSize);
-		this.qaTeam = new ArrayList<QATeamMember>();
+		this.exec = exec;
+		this.index = new AvailabilityIndex();
+		this.registry = registry;
+		this.timeToCompleteJobMils = timeToCompleteJobMils;
+		this.testsPerWindow = testsPerWindow;
+		this.windowLength = windowLength;
+		this.index.setCompletionListener(this::memberCompleted);
 
-		for (int x = 0; x < teamSize; x++) {
-			qaTeam.add(new QATeamMember(this.exec, timeToCompleteJobMils, testsPerWindow,
-					windowLength));
+		addMembers(teamSize);
+
+	}
+
+	/**
+	 * Adds a member to the team. It can take requests as soon as this returns.
+	 * 
+	 * @param name
+	 *            the member's display name. null for "QA Member <id>"
+	 * @return the new member's id
+	 */
+	public synchronized int addMember(String name) {
+		QATeamMember member = new QATeamMember(this.registry.register(name), this.exec,
+				this.index, this.timeToCompleteJobMils, this.testsPerWindow, this.windowLength);
+		QATeamMember[] team = Arrays.copyOf(this.qaTeam, this.qaTeam.length + 1);
+		team[team.length - 1] = member;
+		this.qaTeam = team;
+		this.index.release(member);
+		MetricsRegistry.getInstance().addWorker(member, this.registry.getName(member.getId()));
+		for (Runnable listener : this.capacityListeners) {
+			listener.run();
+		}
+		return member.getId();
+	}
+
+	/**
+	 * Adds count members with the default names, copying the team array once for
+	 * all of them.
+	 * 
+	 * @param count
+	 */
+	private synchronized void addMembers(int count) {
+		QATeamMember[] team = Arrays.copyOf(this.qaTeam, this.qaTeam.length + count);
+		for (int x = team.length - count; x < team.length; x++) {
+			team[x] = new QATeamMember(this.registry.register(null), this.exec, this.index,
+					this.timeToCompleteJobMils, this.testsPerWindow, this.windowLength);
 		}
+		this.qaTeam = team;
+		for (int x = team.length - count; x < team.length; x++) {
+			this.index.release(team[x]);
+			MetricsRegistry.getInstance().addWorker(team[x], this.registry.getName(team[x].getId()));
+		}
+		for (Runnable listener : this.capacityListeners) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Takes a member off the team. A member that is testing finishes its test
+	 * first, but takes no new requests either way. Its id is not reused.
+	 * 
+	 * @param id
+	 * @return false if the member is not on this team
+	 */
+	public synchronized boolean retireMember(int id) {
+		QATeamMember[] team = this.qaTeam;
+		for (int x = 0; x < team.length; x++) {
+			if (team[x].getId() == id) {
+				QATeamMember[] shrunk = new QATeamMember[team.length - 1];
+				System.arraycopy(team, 0, shrunk, 0, x);
+				System.arraycopy(team, x + 1, shrunk, x, team.length - x - 1);
+				this.qaTeam = shrunk;
+
+				team[x].retire();
+				this.index.remove(team[x]);
+				MetricsRegistry.getInstance().removeWorker(team[x]);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getTeamSize() {
+		return this.qaTeam.length;
+	}
+
+	/**
+	 * The ids of the current team members.
+	 * 
+	 * @return
+	 */
+	public int[] getMemberIds() {
+		QATeamMember[] team = this.qaTeam;
+		int[] ids = new int[team.length];
+		for (int x = 0; x < team.length; x++) {
+			ids[x] = team[x].getId();
+		}
+		return ids;
+	}
+
+	public WorkerRegistry getRegistry() {
+		return this.registry;
+	}
 
+	/**
+	 * Returns true if some member is free and off break at curTime, from the
+	 * published availability alone. Cheap enough to ask of many managers.
+	 * 
+	 * @param curTime
+	 * @return
+	 */
+	public boolean isAvailable(long curTime) {
+		return this.index.getAvailability().isAvailable(curTime);
 	}
 
 	/**
@@ -42,13 +261,19 @@ public class QAManager {
 	 * @return
 	 */
 	public boolean canSellHydrant(long curTime, Request req) {
-		for (QATeamMember t : this.qaTeam) {
-			if (t.canTest(curTime)) {
-				req.getResponse().setFulfilledBy(t.getUUID());
-				return true;
-			}
+		QAEvents.Dispatch event = QAEvents.beginDispatch();
+		AvailabilityIndex.Availability availability = this.index.getAvailability();
+		boolean available = availability.isAvailable(curTime);
+		if (available) {
+			QATeamMember t = availability.getMember();
+			req.getResponse().setFulfilledBy(t.getId());
+		} else {
+			req.getResponse().setRetryAt(forecast(availability, curTime));
 		}
-		return false;
+		if (event != null && event.shouldCommit()) {
+			commitDispatch(event, "inquiry", curTime, 1, 0, available ? 1 : 0);
+		}
+		return available;
 	}
 
 	/**
@@ -60,17 +285,482 @@ public class QAManager {
 	 * @return
 	 */
 	public boolean sellHydrant(long curTime, Request req) {
-		for (QATeamMember t : this.qaTeam) {
+		QAEvents.Dispatch event = QAEvents.beginDispatch();
+		QATeamMember t = this.index.pollIdle(curTime);
+		boolean sold = false;
+		if (t != null) {
+			sold = t.runTest(curTime);
+			if (sold) {
+				req.getResponse().setFulfilledBy(t.getId());
+			} else {
+				// another request thread moved t off break using a later curTime than
+				// ours. Hand it back so it is not lost from the index.
+				this.index.release(t);
+			}
+		}
+		if (!sold) {
+			req.getResponse().setRetryAt(getForecast(curTime));
+		}
+		if (event != null && event.shouldCommit()) {
+			commitDispatch(event, "sell", curTime, 1, t == null ? 0 : 1, sold ? 1 : 0);
+		}
+		return sold;
+	}
+
+	/**
+	 * Answers a batch of sales that all arrive at curTime. The free members are
+	 * polled from the index in one go and each takes one request, in array order.
+	 * Those requests are ended as CONSUMED and the rest as REJECTED. DOES count
+	 * against QA worker capacity.
+	 * 
+	 * @param curTime
+	 * @param reqs
+	 * @return the number of requests consumed
+	 */
+	public int sellHydrants(long curTime, Request[] reqs) {
+		QAEvents.Dispatch event = QAEvents.beginDispatch();
+		QATeamMember[] members = new QATeamMember[Math.min(reqs.length, this.qaTeam.length)];
+		int polled = this.index.pollIdle(curTime, members, members.length);
+
+		int sold = 0;
+		for (int x = 0; x < polled; x++) {
+			QATeamMember t = members[x];
 			if (t.runTest(curTime)) {
-				req.getResponse().setFulfilledBy(t.getUUID());
-				return true;
+				Request req = reqs[sold++];
+				req.getResponse().setFulfilledBy(t.getId());
+				req.end(ResponseType.CONSUMED, curTime, getClock().nanoTime());
+			} else {
+				// see sellHydrant
+				this.index.release(t);
 			}
 		}
-		return false;
+		if (sold < reqs.length) {
+			long retryAt = getForecast(curTime);
+			for (int x = sold; x < reqs.length; x++) {
+				reqs[x].getResponse().setRetryAt(retryAt);
+				reqs[x].end(ResponseType.REJECTED, curTime, getClock().nanoTime());
+			}
+		}
+		if (event != null && event.shouldCommit()) {
+			commitDispatch(event, "sellBatch", curTime, reqs.length, polled, sold);
+		}
+		return sold;
+	}
+
+	/**
+	 * Answers a batch of inquiries that all arrive at curTime. Inquiries do not
+	 * take a worker, so they all get the same answer: TEST_ACCEPT from the same
+	 * free member if there is one, TEST_REJ otherwise. Does NOT count against the
+	 * QA worker capacity.
+	 * 
+	 * @param curTime
+	 * @param reqs
+	 * @return the number of requests accepted
+	 */
+	public int canSellHydrants(long curTime, Request[] reqs) {
+		QAEvents.Dispatch event = QAEvents.beginDispatch();
+		AvailabilityIndex.Availability availability = this.index.getAvailability();
+		int accepted = 0;
+		if (availability.isAvailable(curTime)) {
+			QATeamMember t = availability.getMember();
+			for (Request req : reqs) {
+				req.getResponse().setFulfilledBy(t.getId());
+				req.end(ResponseType.TEST_ACCEPT, curTime, getClock().nanoTime());
+			}
+			accepted = reqs.length;
+		} else {
+			long retryAt = forecast(availability, curTime);
+			for (Request req : reqs) {
+				req.getResponse().setRetryAt(retryAt);
+				req.end(ResponseType.TEST_REJ, curTime, getClock().nanoTime());
+			}
+		}
+		if (event != null && event.shouldCommit()) {
+			commitDispatch(event, "inquiryBatch", curTime, reqs.length, 0, accepted);
+		}
+		return accepted;
+	}
+
+	/**
+	 * Turns the sale wait queue used by submitSale on or off. Set it before any
+	 * sale is submitted.
+	 * 
+	 * @param maxWaitMils
+	 *            how long a sale may wait for a member. 0 turns waiting off
+	 * @param capacity
+	 *            the most sales that may wait at once
+	 */
+	public void setSaleWait(int maxWaitMils, int capacity) {
+		this.saleWaitMils = maxWaitMils;
+		this.saleWaitCapacity = capacity;
+	}
+
+	/**
+	 * Changes which free member a sale is given to (see SelectionPolicy). Set it
+	 * before the team takes requests.
+	 * 
+	 * @param policy
+	 */
+	public void setSelectionPolicy(SelectionPolicy policy) {
+		this.index.setSelectionPolicy(policy, this.exec.currentTimeMillis());
+	}
+
+	public SelectionPolicy getSelectionPolicy() {
+		return this.index.getSelectionPolicy();
+	}
+
+	public int getSaleWaitMils() {
+		return this.saleWaitMils;
+	}
+
+	/**
+	 * Sells a hydrant, waiting for a member if the sale wait queue is on. Unlike
+	 * sellHydrant this answers the request itself: CONSUMED, possibly later and
+	 * from another thread, or REJECTED. DOES count against QA worker capacity.
+	 * 
+	 * @param curTime
+	 * @param req
+	 */
+	public void submitSale(long curTime, Request req) {
+		if (sellHydrant(curTime, req)) {
+			req.end(ResponseType.CONSUMED, curTime, getClock().nanoTime());
+			return;
+		}
+		if (this.saleWaitMils <= 0) {
+			req.end(ResponseType.REJECTED, curTime, getClock().nanoTime());
+			return;
+		}
+		if (this.waitingCount.incrementAndGet() > this.saleWaitCapacity) {
+			this.waitingCount.decrementAndGet();
+			req.end(ResponseType.REJECTED, curTime, getClock().nanoTime());
+			return;
+		}
+
+		WaitingSale sale = new WaitingSale(curTime, curTime + this.saleWaitMils,
+				this.waitingSeq.getAndIncrement(), req);
+		this.waiting.add(sale);
+		// the deadline passes once the clock is beyond it
+		this.exec.schedule(() -> expire(sale), this.saleWaitMils + 1);
+		// a member may have been freed between the sellHydrant and the add
+		drainWaiting();
+	}
+
+	/**
+	 * The number of sales that were consumed after waiting in the queue.
+	 * 
+	 * @return
+	 */
+	public long getWaitedSales() {
+		return this.waitedSales.sum();
+	}
+
+	/**
+	 * Average time, in milliseconds, a sale consumed from the queue waited.
+	 * 
+	 * @return
+	 */
+	public double getMeanSaleWaitMils() {
+		long count = this.waitedSales.sum();
+		return count == 0 ? 0 : this.totalWaitMils.sum() / (double) count;
+	}
+
+	/**
+	 * The earliest time, no earlier than curTime, that a member is due to be free
+	 * and off break: curTime if one already is, and Long.MAX_VALUE if the team is
+	 * empty. See AvailabilityIndex.Availability.getForecast.
+	 * 
+	 * @param curTime
+	 * @return
+	 */
+	public long getForecast(long curTime) {
+		return forecast(this.index.getAvailability(), curTime);
+	}
+
+	/**
+	 * The number of members that could take a sale at curTime: free, and off
+	 * break because they have tests left in their window. A member with several
+	 * tests left still takes them one at a time, so it counts once.
+	 * 
+	 * @param curTime
+	 * @return
+	 */
+	public int getCapacity(long curTime) {
+		return this.index.countIdle(curTime);
+	}
+
+	/**
+	 * Runs listener, on whichever thread noticed, whenever a member may have
+	 * become free. Waiting sales are handed their members first.
+	 * 
+	 * @param listener
+	 */
+	public void addCapacityListener(Runnable listener) {
+		this.capacityListeners.add(listener);
+	}
+
+	public void removeCapacityListener(Runnable listener) {
+		this.capacityListeners.remove(listener);
+	}
+
+	/**
+	 * The time, in milliseconds, on the clock the QA team runs on.
+	 * 
+	 * @return
+	 */
+	public long currentTimeMillis() {
+		return this.exec.currentTimeMillis();
+	}
+
+	/**
+	 * The clock the QA team runs on. Callers should read the curTime they pass
+	 * in from it.
+	 * 
+	 * @return
+	 */
+	public QAClock getClock() {
+		return this.exec.getClock();
+	}
+
+	/**
+	 * Called when a member finishes a test. A member that is now on break is only
+	 * useful to the queue and the capacity listeners once the break ends, so they
+	 * are told then.
+	 * 
+	 * @param member
+	 */
+	private void memberCompleted(QATeamMember member) {
+		if (this.waiting.isEmpty() && this.capacityListeners.isEmpty()) {
+			return;
+		}
+		long now = this.exec.currentTimeMillis();
+		long breakEnd = member.getBreakEnd();
+		if (breakEnd != Long.MIN_VALUE && breakEnd >= now) {
+			this.exec.schedule(this::capacityFreed, breakEnd - now + 1);
+		} else {
+			capacityFreed();
+		}
+	}
+
+	private void capacityFreed() {
+		drainWaiting();
+		for (Runnable listener : this.capacityListeners) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Hands free members to waiting sales, earliest deadline first, until one or
+	 * the other runs out. Sales found overdue on the way are rejected, since their
+	 * expiry can run late behind a busy timer.
+	 */
+	private void drainWaiting() {
+		while (!this.waiting.isEmpty()) {
+			QAEvents.Dispatch event = QAEvents.beginDispatch();
+			long now = this.exec.currentTimeMillis();
+			QATeamMember t = this.index.pollIdle(now);
+			if (t == null) {
+				wakeWhenBreakEnds(now);
+				return;
+			}
+
+			WaitingSale sale;
+			while ((sale = this.waiting.pollFirst()) != null) {
+				if (!sale.answered.compareAndSet(false, true)) {
+					continue;
+				}
+				if (now <= sale.deadline) {
+					break;
+				}
+				reject(sale, now);
+			}
+			if (sale == null) {
+				this.index.release(t);
+				return;
+			}
+
+			if (!t.runTest(now)) {
+				// see sellHydrant. The sale goes back in the queue, and since its
+				// expiry may have come and gone while it was out, gets a new one.
+				this.index.release(t);
+				sale.answered.set(false);
+				this.waiting.add(sale);
+				WaitingSale retry = sale;
+				this.exec.schedule(() -> expire(retry), Math.max(0, sale.deadline - now) + 1);
+				if (event != null && event.shouldCommit()) {
+					commitDispatch(event, "handoff", now, 1, 1, 0);
+				}
+				return;
+			}
+
+			this.waitingCount.decrementAndGet();
+			this.waitedSales.increment();
+			this.totalWaitMils.add(now - sale.sentTime);
+			// set when submitSale's sellHydrant turned the sale away
+			sale.req.getResponse().setRetryAt(Long.MIN_VALUE);
+			sale.req.getResponse().setFulfilledBy(t.getId());
+			sale.req.end(ResponseType.CONSUMED, now, getClock().nanoTime());
+			if (event != null && event.shouldCommit()) {
+				commitDispatch(event, "handoff", now, 1, 1, 1);
+			}
+		}
+	}
+
+	/**
+	 * Schedules drainWaiting for the millisecond the first member on break comes
+	 * back, unless a hand off is already due by then. Busy members need nothing
+	 * scheduled: finishing their test drains the queue. Only the earliest wake up
+	 * is kept, and the hand off it runs schedules the next one if sales are still
+	 * waiting.
+	 * 
+	 * @param now
+	 */
+	private void wakeWhenBreakEnds(long now) {
+		long availableFrom = this.index.getAvailability().getAvailableFrom();
+		if (availableFrom == Long.MAX_VALUE || availableFrom <= now) {
+			return;
+		}
+		long cur;
+		while (availableFrom < (cur = this.wakeAt.get())) {
+			if (this.wakeAt.compareAndSet(cur, availableFrom)) {
+				this.exec.schedule(() -> {
+					this.wakeAt.compareAndSet(availableFrom, Long.MAX_VALUE);
+					drainWaiting();
+				}, availableFrom - now);
+				return;
+			}
+		}
+	}
+
+	private static long forecast(AvailabilityIndex.Availability availability, long curTime) {
+		return Math.max(curTime, availability.getForecast());
+	}
+
+	/**
+	 * Rejects sale if its deadline passed while it was still waiting.
+	 * 
+	 * @param sale
+	 */
+	private void expire(WaitingSale sale) {
+		if (sale.answered.compareAndSet(false, true)) {
+			QAEvents.Dispatch event = QAEvents.beginDispatch();
+			long now = this.exec.currentTimeMillis();
+			this.waiting.remove(sale);
+			reject(sale, now);
+			if (event != null && event.shouldCommit()) {
+				commitDispatch(event, "expire", now, 1, 0, 0);
+			}
+		}
+	}
+
+	/**
+	 * Answers a sale that has left the queue REJECTED. The caller must have won
+	 * its answered flag.
+	 * 
+	 * @param sale
+	 * @param now
+	 */
+	private void reject(WaitingSale sale, long now) {
+		this.waitingCount.decrementAndGet();
+		sale.req.getResponse().setRetryAt(getForecast(now));
+		sale.req.end(ResponseType.REJECTED, now, getClock().nanoTime());
+	}
+
+	/**
+	 * Fills in and commits a Dispatch event. Only called once the event is known
+	 * to be wanted, so working out why requests were missed costs nothing while
+	 * no recording is running.
+	 * 
+	 * @param event
+	 * @param operation
+	 * @param curTime
+	 * @param requests
+	 * @param scanned
+	 * @param answered
+	 */
+	private void commitDispatch(QAEvents.Dispatch event, String operation, long curTime,
+			int requests, int scanned, int answered) {
+		AvailabilityIndex.Availability availability = this.index.getAvailability();
+		event.operation = operation;
+		event.curTime = curTime;
+		event.requests = requests;
+		event.scanned = scanned;
+		event.answered = answered;
+		event.availableFrom = availability.getAvailableFrom();
+		if (answered < requests) {
+			if (availability.getAvailableFrom() == Long.MAX_VALUE) {
+				event.missReason = "busy";
+			} else if (!availability.isAvailable(curTime)) {
+				event.missReason = "break";
+			} else {
+				event.missReason = "contention";
+			}
+		}
+		event.commit();
+	}
+
+	/**
+	 * Average time, in milliseconds, between the moment a test should have ended
+	 * and the moment its worker was freed.
+	 * 
+	 * @return
+	 */
+	public double getMeanCompletionJitterMils() {
+		return this.exec.getMeanCompletionJitterMils();
+	}
+
+	public double getMaxCompletionJitterMils() {
+		return this.exec.getMaxCompletionJitterMils();
+	}
+
+	/**
+	 * The changes an ADAPTIVE QA team pool made to its size. Empty for every other
+	 * mode.
+	 * 
+	 * @return
+	 */
+	public List<AdaptiveExecutor.Decision> getPoolDecisions() {
+		return this.exec.getPoolDecisions();
+	}
+
+	/**
+	 * Average time, in nanoseconds, spent handing a task to the QA team's pool.
+	 * 
+	 * @return
+	 */
+	public long getMeanSubmitNanos() {
+		return this.exec.getMeanSubmitNanos();
 	}
 
 	public void shutDown() {
+		for (QATeamMember member : this.qaTeam) {
+			MetricsRegistry.getInstance().removeWorker(member);
+		}
 		this.exec.shutDown();
 	}
 
+	/**
+	 * A sale in the wait queue. Ordered by deadline, then by arrival. Whichever of
+	 * the hand off and the expiry wins answered answers the request.
+	 */
+	private static class WaitingSale implements Comparable<WaitingSale> {
+		private long sentTime;
+		private long deadline;
+		private long seq;
+		private Request req;
+		private AtomicBoolean answered = new AtomicBoolean(false);
+
+		WaitingSale(long sentTime, long deadline, long seq, Request req) {
+			this.sentTime = sentTime;
+			this.deadline = deadline;
+			this.seq = seq;
+			this.req = req;
+		}
+
+		@Override
+		public int compareTo(WaitingSale sale) {
+			int cmp = Long.compare(this.deadline, sale.deadline);
+			return cmp != 0 ? cmp : Long.compare(this.seq, sale.seq);
+		}
+	}
+
 }
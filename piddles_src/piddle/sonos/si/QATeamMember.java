@@ -1,18 +1,39 @@
 package piddle.sonos.si;
 
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Uses a threadsafe threadpool, shared across all instances of QATeamMembers to
- * run QA tests.
+ * run QA tests. A test does not hold a pool thread while it runs. Its
+ * completion is scheduled on the pool's timer for timeToCompleteJob later.
  * 
  * Uses an AtomicBoolean as a locking mechanism while the worker is testing.
  * 
- * Uses a synchronized method to test if the worker should be on break.
+ * Uses a lock free ring of break expiry times to test if the worker should be
+ * on break.
+ * 
+ * When a test completes the member puts itself back into the QAManager's
+ * AvailabilityIndex so that it can be found again without a scan.
+ * 
+ * A member is identified by a dense int id from the QAManager's
+ * WorkerRegistry. A retired member finishes the test it is running, if any,
+ * and is then dropped by the index instead of being made available again.
+ * 
+ * The member keeps its own busy and break time for the MetricsRegistry. Both
+ * are only written when a test completes, by the one thread completing it.
+ * Break time is booked in full when the break starts. Busy time is timed in
+ * nanoseconds on the team's QAClock, from the moment the test really started
+ * rather than the caller's curTime, so that it does not pick up a millisecond
+ * of rounding, or the age of a cached curTime, on every test.
+ * 
+ * The test count, last test start and window are also read by the
+ * AvailabilityIndex to rank the member for its SelectionPolicy. It only reads
+ * them while it owns the member, after the test that wrote them completed.
+ * 
+ * Test starts, completions and breaks are emitted as QAEvents flight recorder
+ * events when a recording has them turned on.
  * 
  * Note: I am using an AtomicBoolean over a ReentrantLock because testing a
  * lock.tryLock() results in the lock being grabbed if it is available. This
@@ -25,22 +46,60 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class QATeamMember {
 
 	private ThreadSafeThreadPoolManager qaThreadPool;
+	private QAClock clock = null;
+	private AvailabilityIndex index;
 	private AtomicBoolean isFree = new AtomicBoolean(true);
 	private int timeToCompleteJob = 0;
-	private Queue<Long> testQueue = null;
-	private String uuid = null;
+	private AtomicLongArray window = null;
+	private volatile int oldest = 0;
+	private int id = 0;
+	private volatile boolean retired = false;
+	private long addedAt = 0;
+	private long testStart = Long.MIN_VALUE;
+	private long testStartNanos = 0;
+	private long testCount = 0;
+	private volatile long freeAt = Long.MIN_VALUE;
+	private volatile long busyNanos = 0;
+	private volatile long breakMils = 0;
+	private long breakFrom = Long.MIN_VALUE;
 	private int testsPerWindow = 0;
 	private int windowLength = 0;
+	private Runnable completeTest = null;
 
-	public QATeamMember(ThreadSafeThreadPoolManager exec, int timeToCompleteJob, int testsPerWindow,
+	public QATeamMember(int id, ThreadSafeThreadPoolManager exec,
+			AvailabilityIndex index, int timeToCompleteJob, int testsPerWindow,
 			int windowLength) {
 
+		this.id = id;
+		this.clock = exec.getClock();
+		this.addedAt = this.clock.currentTimeMillis();
 		this.qaThreadPool = exec;
+		this.index = index;
 		this.timeToCompleteJob = timeToCompleteJob;
-		this.testQueue = new LinkedList<Long>();
-		this.uuid = UUID.randomUUID().toString();
 		this.testsPerWindow = testsPerWindow;
 		this.windowLength = windowLength;
+
+		// an empty slot never puts the worker on break
+		this.window = new AtomicLongArray(testsPerWindow);
+		for (int x = 0; x < testsPerWindow; x++) {
+			this.window.set(x, Long.MIN_VALUE);
+		}
+
+		// built once so that starting a test does not allocate a new lambda
+		this.completeTest = () -> {
+			long now = this.clock.currentTimeMillis();
+			this.busyNanos += this.clock.nanoTime() - this.testStartNanos;
+			long breakEnd = getBreakEnd();
+			if (breakEnd != Long.MIN_VALUE && breakEnd >= now) {
+				this.breakMils += breakEnd + 1 - now;
+				this.breakFrom = now;
+				QAEvents.breakStarted(this.id, now, breakEnd);
+			}
+			QAEvents.testCompleted(this.id, this.testStart, this.timeToCompleteJob,
+					now - this.testStart);
+			this.isFree.compareAndSet(false, true);
+			this.index.releaseCompleted(this);
+		};
 	}
 
 	/**
@@ -57,6 +116,10 @@ public class QATeamMember {
 	/**
 	 * Returns true if a test can be consumed. False otherwise
 	 * 
+	 * Winning the isFree compareAndSet makes this thread the only writer of the
+	 * window until the test completes, so the window can be updated with plain
+	 * atomic stores.
+	 * 
 	 * Ensure exceptions are caught so that we dont get thread leaks.
 	 * 
 	 * @param curTime
@@ -65,20 +128,21 @@ public class QATeamMember {
 	public boolean runTest(long curTime) {
 		if (!isOnBreak(curTime) && this.isFree.compareAndSet(true, false)) {
 			try {
-				if (testQueue.size() == this.testsPerWindow) {
-					testQueue.remove();
-				}
-				testQueue.add(curTime + this.windowLength);
-
-				qaThreadPool.submit(() -> {
-					try {
-						TimeUnit.MILLISECONDS.sleep(this.timeToCompleteJob);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					} finally {
-						this.isFree.compareAndSet(false, true);
-					}
-				});
+				int slot = this.oldest;
+				this.window.set(slot, curTime + this.windowLength);
+				this.oldest = (slot + 1 == this.testsPerWindow) ? 0 : slot + 1;
+				this.testStart = curTime;
+				this.testStartNanos = this.clock.nanoTime();
+				this.testCount++;
+				long breakEnd = getBreakEnd();
+				this.freeAt = Math.max(curTime + this.timeToCompleteJob,
+						breakEnd == Long.MIN_VALUE ? Long.MIN_VALUE : breakEnd + 1);
+
+				QAEvents.testStarted(this.id, curTime, this.timeToCompleteJob);
+
+				// filed as busy before the test can complete and take it back out
+				this.index.testStarted(this);
+				qaThreadPool.schedule(this.completeTest, this.timeToCompleteJob);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -88,8 +152,188 @@ public class QATeamMember {
 		}
 	}
 
-	public String getUUID() {
-		return this.uuid;
+	/**
+	 * The member's id in its QAManager's WorkerRegistry.
+	 * 
+	 * @return
+	 */
+	public int getId() {
+		return this.id;
+	}
+
+	/**
+	 * Total time, in milliseconds, spent on completed tests.
+	 * 
+	 * @return
+	 */
+	public long getBusyMils() {
+		return TimeUnit.NANOSECONDS.toMillis(this.busyNanos);
+	}
+
+	/**
+	 * Total time, in milliseconds, spent on break, counting the current break in
+	 * full.
+	 * 
+	 * @return
+	 */
+	public long getBreakMils() {
+		return this.breakMils;
+	}
+
+	/**
+	 * Time, in milliseconds, the member has been on the team without testing or
+	 * being on break, as of now.
+	 * 
+	 * @param now
+	 * @return
+	 */
+	public long getIdleMils(long now) {
+		return Math.max(0, now - this.addedAt - getBusyMils() - this.breakMils);
+	}
+
+	/**
+	 * The time, in milliseconds, on the clock the member's tests run on.
+	 * 
+	 * @return
+	 */
+	public long currentTimeMillis() {
+		return this.clock.currentTimeMillis();
+	}
+
+	public boolean isRetired() {
+		return this.retired;
+	}
+
+	/**
+	 * Takes the member off the team. Only the QAManager should call this, since
+	 * the member also has to be removed from the index.
+	 */
+	void retire() {
+		this.retired = true;
+	}
+
+	/**
+	 * Called by the AvailabilityIndex when it makes the member available again
+	 * after its break ended. Emits a BreakEnded event if the member really did go
+	 * on break: the index also moves members whose window merely still holds an
+	 * old expiry.
+	 * 
+	 * Only the thread that won the member from the index calls this, and the
+	 * member was put in the index after breakFrom was written.
+	 * 
+	 * @param curTime
+	 */
+	void breakEnded(long curTime) {
+		if (this.breakFrom == Long.MIN_VALUE) {
+			return;
+		}
+		this.breakFrom = Long.MIN_VALUE;
+		QAEvents.breakEnded(this.id, getBreakEnd(), curTime);
+	}
+
+	/**
+	 * The number of tests the member has started.
+	 * 
+	 * @return
+	 */
+	public long getTestCount() {
+		return this.testCount;
+	}
+
+	/**
+	 * The curTime of the member's last test, or Long.MIN_VALUE if it has not
+	 * taken one.
+	 * 
+	 * @return
+	 */
+	public long getLastTestStart() {
+		return this.testStart;
+	}
+
+	/**
+	 * The first millisecond the member is due to be free and off break again,
+	 * worked out when its last test started: when the test is scheduled to
+	 * complete, or the millisecond after the break the test put it on ends,
+	 * whichever is later. Long.MIN_VALUE if it has not taken a test.
+	 * 
+	 * @return
+	 */
+	public long getFreeAt() {
+		return this.freeAt;
+	}
+
+	/**
+	 * The number of tests the member could take at curTime before going on
+	 * break: the window slots that are unused or have expired.
+	 * 
+	 * @param curTime
+	 * @return
+	 */
+	public int getTestsLeft(long curTime) {
+		int left = 0;
+		for (int x = 0; x < this.testsPerWindow; x++) {
+			if (this.window.get(x) < curTime) {
+				left++;
+			}
+		}
+		return left;
+	}
+
+	/**
+	 * The expiry of the used slot that frees up next, i.e. the last millisecond
+	 * getTestsLeft(curTime) still holds, or Long.MAX_VALUE if no slot is still in
+	 * use at curTime.
+	 * 
+	 * @param curTime
+	 * @return
+	 */
+	public long getNextSlotExpiry(long curTime) {
+		long next = Long.MAX_VALUE;
+		for (int x = 0; x < this.testsPerWindow; x++) {
+			long expiry = this.window.get(x);
+			if (expiry >= curTime && expiry < next) {
+				next = expiry;
+			}
+		}
+		return next;
+	}
+
+	public int getTestsPerWindow() {
+		return this.testsPerWindow;
+	}
+
+	/**
+	 * The end of the break the member would go on if it took a test at curTime,
+	 * or Long.MIN_VALUE if that test would leave it tests to spare. The test
+	 * overwrites the oldest slot, so the break lasts until the next oldest slot
+	 * expires.
+	 * 
+	 * @param curTime
+	 * @return
+	 */
+	public long getNextBreakEnd(long curTime) {
+		if (this.testsPerWindow == 1) {
+			return curTime + this.windowLength;
+		}
+		int next = this.oldest + 1 == this.testsPerWindow ? 0 : this.oldest + 1;
+		long breakEnd = this.window.get(next);
+		return breakEnd < curTime ? Long.MIN_VALUE : breakEnd;
+	}
+
+	/**
+	 * Returns the expiry of the oldest slot in the window, the slot the next test
+	 * overwrites: the last millisecond of the worker's break, if it is on one.
+	 * Long.MIN_VALUE only while the ring has not filled up yet. Once it has
+	 * wrapped this is an expiry even when the worker has tests left, just one
+	 * that is already in the past, so a caller has to compare it with the time
+	 * before treating it as a break (see isOnBreak). It does not take the time
+	 * itself because the AvailabilityIndex files a member on break under this
+	 * value and looks it up again under the same value to remove it.
+	 * 
+	 * @return
+	 */
+	public long getBreakEnd() {
+		return this.window.get(this.oldest);
 	}
 
 	/**
@@ -97,34 +341,35 @@ public class QATeamMember {
 	 * tests the sliding window of jobs to determine if the worker should be on
 	 * break.
 	 * 
+	 * The window is a fixed ring of testsPerWindow expiry times (the time of each
+	 * test plus windowLength). The slot at oldest holds the expiry of the oldest
+	 * test in the window, which is the slot the next test will overwrite. The
+	 * worker is on break until that expiry passes. Slots that have never been used
+	 * hold Long.MIN_VALUE, so a worker with tests left in the window is never on
+	 * break.
+	 * 
 	 * The thread in the Main function, which generates requests, will call runTest
-	 * and canTest (via the QAManager) asyncronously. Both of those methods call
-	 * isOnBreak to test if the QA worker is on break. To prevent errors associated
-	 * with async calls, isOnBreak is synchonized so that only one thread at a time
-	 * can access it. The result will be that the request thread will potentially be
-	 * blocked while waiting to access this method.
+	 * and canTest (via the QAManager) asyncronously. The ring used to be a
+	 * LinkedList behind a synchronized isOnBreak, which blocked every inquiry
+	 * while another thread held the monitor, and runTest changed the list outside
+	 * that lock anyway. Now the ring is only written by the thread that won the
+	 * isFree compareAndSet, and readers take no monitor and allocate nothing. A
+	 * reader that races a write can at worst see the worker on break while it is
+	 * starting a test, and it is busy at that point anyway.
 	 * 
 	 * A different option for managing the worker breaks could have been to use the
 	 * executor threadpool to schedule an event that would flip a second
-	 * AtomicBoolean that indicated onBreak. This would block the request loop less
-	 * because it would not have to (potentially) wait for access to a synchronized
-	 * function. I chose not to do this because the scheduler would have added a
-	 * runnable to the thread's execution queue, possibly behind several sellHydrant
-	 * runnables. The sellHydrant runnables sitting in front of the scheduled
-	 * runnable would be rejected because the qa worker is not yet off break even
-	 * though it should be. I think (although i do not know) that this would result
-	 * in more lost sales than the presumably insignificant time that a request
-	 * blocks due to waiting for access to the synchronized function isOnBreak.
+	 * AtomicBoolean that indicated onBreak. I chose not to do this because the
+	 * scheduler would have added a runnable to the thread's execution queue,
+	 * possibly behind several sellHydrant runnables. The sellHydrant runnables
+	 * sitting in front of the scheduled runnable would be rejected because the qa
+	 * worker is not yet off break even though it should be.
 	 * 
 	 * @param curTime
 	 * @return
 	 */
-	private synchronized boolean isOnBreak(long curTime) {
-		if (testQueue.size() < this.testsPerWindow) {
-			return false;
-		} else {
-			return curTime <= testQueue.peek().longValue();
-		}
+	private boolean isOnBreak(long curTime) {
+		return curTime <= this.window.get(this.oldest);
 	}
 
 }
@@ -0,0 +1,128 @@
+package piddle.sonos.si;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Subscribes a stream of sales to a QA team, asking upstream for only as many
+ * sales as the team can take.
+ * 
+ * Firing sales at a QAManager answers every one of them at once, CONSUMED or
+ * REJECTED, however busy the team is. The processor instead keeps its demand
+ * upstream equal to the team's capacity: the number of members that are free
+ * and off break (see QAManager.getCapacity). It asks for that many sales when
+ * it subscribes, and tops its demand back up whenever the manager says a member
+ * may have become free. While the team is busy no demand is outstanding, so
+ * sales queue upstream and producers that publish through a bounded
+ * SubmissionPublisher block in submit, or see offer fail, instead of flooding
+ * the team. A TimeoutProcessor in between bounds how long a sale may queue.
+ * 
+ * Every sale that arrives is sold. A sale is only REJECTED when some other
+ * caller of the same QAManager took the member the demand was counted for.
+ * Answered sales are published downstream, e.g. to a BatchProcessor feeding a
+ * log. With no subscriber they are dropped. A slow subscriber makes submit
+ * block here, which holds back demand upstream in turn.
+ * 
+ * @author Scott
+ *
+ */
+public class QATeamProcessor extends SubmissionPublisher<Request>
+		implements Flow.Processor<Request, Request> {
+
+	private QAManager manager = null;
+	private Flow.Subscription subscription = null;
+	private long outstanding = 0;
+	private Runnable topUp = this::topUp;
+	private LongAdder consumed = new LongAdder();
+	private LongAdder rejected = new LongAdder();
+
+	public QATeamProcessor(QAManager manager) {
+		this(manager, ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+	}
+
+	/**
+	 * @param manager
+	 * @param executor
+	 *            delivers answered sales downstream
+	 * @param maxBufferCapacity
+	 *            the most answered sales buffered for a downstream subscriber
+	 */
+	public QATeamProcessor(QAManager manager, Executor executor, int maxBufferCapacity) {
+		super(executor, maxBufferCapacity);
+		this.manager = manager;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		synchronized (this) {
+			if (this.subscription != null) {
+				subscription.cancel();
+				return;
+			}
+			this.subscription = subscription;
+		}
+		this.manager.addCapacityListener(this.topUp);
+		topUp();
+	}
+
+	@Override
+	public void onNext(Request req) {
+		synchronized (this) {
+			this.outstanding--;
+		}
+		long curTime = this.manager.currentTimeMillis();
+		if (this.manager.sellHydrant(curTime, req)) {
+			this.consumed.increment();
+			req.end(ResponseType.CONSUMED, curTime, this.manager.getClock().nanoTime());
+		} else {
+			this.rejected.increment();
+			req.end(ResponseType.REJECTED, curTime, this.manager.getClock().nanoTime());
+		}
+		submit(req);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		this.manager.removeCapacityListener(this.topUp);
+		closeExceptionally(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		this.manager.removeCapacityListener(this.topUp);
+		close();
+	}
+
+	public long getConsumed() {
+		return this.consumed.sum();
+	}
+
+	public long getRejected() {
+		return this.rejected.sum();
+	}
+
+	/**
+	 * Asks upstream for as many sales as the team can take now, less the ones
+	 * already asked for and not yet delivered. The request is made outside the
+	 * lock since an upstream may deliver from inside it.
+	 */
+	private void topUp() {
+		Flow.Subscription subscription;
+		long demand;
+		synchronized (this) {
+			subscription = this.subscription;
+			if (subscription == null) {
+				return;
+			}
+			demand = this.manager.getCapacity(this.manager.currentTimeMillis()) - this.outstanding;
+			if (demand <= 0) {
+				return;
+			}
+			this.outstanding += demand;
+		}
+		subscription.request(demand);
+	}
+}
@@ -1,27 +1,131 @@
 package piddle.sonos.si;
 
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 
 /**
- * The request class is just a wrapper for a CompletableFuture. It helps with
- * readability given that the scenario being imagined is an HTTP request being
- * made to a server.
+ * The request class is a one shot completion that resolves a Response. It helps
+ * with readability given that the scenario being imagined is an HTTP request
+ * being made to a server.
  * 
- * The request contains a CompletableFuture that resolves a Response. A Response
- * records the time the response was made, the ResponseType, and if applicable,
- * the QA team member who consumed/accepted the request.
+ * A Response records the time the response was made, the ResponseType, and if
+ * applicable, the QA team member who consumed/accepted the request.
+ * 
+ * A request created with an AuditJournal writes its creation, and later its
+ * response or error, to the journal. Every response is also counted by the
+ * MetricsRegistry, along with its latency if the sender set the sent time.
+ * 
+ * The request used to wrap a CompletableFuture, which cost an extra object per
+ * request and a completion stack it never used. The completion is now a
+ * volatile state field: answering a request is one volatile write, and only
+ * takes the request's monitor if a thread is blocked in checkResponse.
+ * 
+ * Requests can also be reused. acquire takes one from the calling thread's
+ * pool, or creates one if the pool is empty, and recycle puts an answered
+ * request, and its Response, back into the pool of the thread that recycles
+ * it. A sender that recycles its requests therefore allocates nothing per
+ * request once its pool is warm. A request must only be recycled once nothing
+ * will touch it or its Response again.
  * 
  * @author Scott
  *
  */
 public class Request {
 
-	private CompletableFuture<Response> future;
-	private Response resp = null;
+	private static final int PENDING = 0;
+	private static final int ENDED = 1;
+	private static final int FAILED = 2;
+
+	/**
+	 * The most requests a thread's pool keeps. Requests recycled beyond that are
+	 * left to the garbage collector.
+	 */
+	private static final int POOL_CAPACITY = 1024;
+	private static final ThreadLocal<Pool> pools = ThreadLocal.withInitial(Pool::new);
+
+	private volatile int state = PENDING;
+	private volatile int waiters = 0;
+	private Exception error = null;
+	private Response resp = new Response();
+	private Consumer<Response> listener = null;
+	private AuditJournal journal = null;
+	private long requestId = -1;
+	private long sentTime = Long.MIN_VALUE;
+	private boolean pooled = false;
 
 	public Request() {
-		this.future = new CompletableFuture<Response>();
-		this.resp = new Response();
+	}
+
+	/**
+	 * @param journal
+	 *            records the request's creation now and its response later
+	 * @param curTime
+	 *            the time the request is created
+	 */
+	public Request(AuditJournal journal, long curTime) {
+		setJournal(journal, curTime);
+	}
+
+	/**
+	 * A fresh request from the calling thread's pool.
+	 * 
+	 * @return
+	 */
+	public static Request acquire() {
+		return pools.get().take();
+	}
+
+	/**
+	 * A fresh request from the calling thread's pool, journaled as if created
+	 * with new Request(journal, curTime).
+	 * 
+	 * @param journal
+	 * @param curTime
+	 * @return
+	 */
+	public static Request acquire(AuditJournal journal, long curTime) {
+		Request req = acquire();
+		req.setJournal(journal, curTime);
+		return req;
+	}
+
+	/**
+	 * Puts an answered request back into the calling thread's pool. The caller
+	 * must not use the request, or its Response, afterwards.
+	 */
+	public void recycle() {
+		if (this.pooled || this.state == PENDING) {
+			throw new IllegalStateException(this.pooled ? "Request was already recycled"
+					: "Request recycled before it was answered");
+		}
+		this.state = PENDING;
+		this.error = null;
+		this.resp.reset();
+		this.listener = null;
+		this.journal = null;
+		this.requestId = -1;
+		this.sentTime = Long.MIN_VALUE;
+		pools.get().put(this);
+	}
+
+	private void setJournal(AuditJournal journal, long curTime) {
+		this.journal = journal;
+		this.requestId = journal.nextRequestId();
+		journal.recordCreated(this.requestId, curTime);
+	}
+
+	/**
+	 * The time the request was sent, or Long.MIN_VALUE if the sender did not set
+	 * it. Compared with the response time it gives the request's latency.
+	 * 
+	 * @return
+	 */
+	public long getSentTime() {
+		return this.sentTime;
+	}
+
+	public void setSentTime(long sentTime) {
+		this.sentTime = sentTime;
 	}
 
 	/**
@@ -31,36 +135,153 @@ public class Request {
 	 * @param curTime
 	 */
 	public void end(ResponseType resp, long curTime) {
+		end(resp, curTime, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Terminate a request, recording the nanosecond time of the response as well
+	 * 
+	 * @param resp
+	 * @param curTime
+	 * @param nanoTime
+	 *            the QAClock's nanoTime, read along with curTime
+	 */
+	public void end(ResponseType resp, long curTime, long nanoTime) {
 		this.getResponse().setResponseTime(curTime);
-		switch (resp) {
-		case CONSUMED:
-			this.getResponse().setResponseType(ResponseType.CONSUMED);
-			this.future.complete(this.resp);
-			break;
-		case REJECTED:
-			this.getResponse().setResponseType(ResponseType.REJECTED);
-			this.future.complete(this.resp);
-			break;
-		case TEST_ACCEPT:
-			this.getResponse().setResponseType(ResponseType.TEST_ACCEPT);
-			this.future.complete(this.resp);
-			break;
-		case TEST_REJ:
-			this.getResponse().setResponseType(ResponseType.TEST_REJ);
-			this.future.complete(this.resp);
-			break;
+		this.getResponse().setResponseNanoTime(nanoTime);
+		this.getResponse().setResponseType(resp);
+
+		if (this.journal != null) {
+			this.journal.recordEnded(this.requestId, curTime, resp,
+					this.getResponse().getFulfilledBy());
+		}
+		MetricsRegistry.getInstance().recordResponse(resp,
+				this.sentTime == Long.MIN_VALUE ? -1 : curTime - this.sentTime);
+
+		// listeners run before the request completes, so a thread that joins the
+		// request also sees everything the listeners did
+		if (this.listener != null) {
+			this.listener.accept(this.resp);
+		}
+
+		// an ERROR response type on its own does not complete the request, error
+		// does
+		if (resp != ResponseType.ERROR) {
+			complete(ENDED);
 		}
 	}
 
-	public void error(Exception e) {
-		this.future.completeExceptionally(e);
+	/**
+	 * Fails the request.
+	 * 
+	 * @param e
+	 * @param curTime
+	 *            read from the QA team's QAClock, like the curTime of end
+	 */
+	public void error(Exception e, long curTime) {
+		if (this.journal != null) {
+			this.journal.recordError(this.requestId, curTime);
+		}
+		MetricsRegistry.getInstance().recordResponse(ResponseType.ERROR, -1);
+		this.error = e;
+		complete(FAILED);
 	}
 
 	public Response getResponse() {
 		return this.resp;
 	}
 
+	/**
+	 * Calls listener with the Response as soon as the request is ended, on the
+	 * thread that ends it and before checkResponse returns. Not called if the
+	 * request ends in an error. Must be registered before the request is handed
+	 * to another thread.
+	 * 
+	 * @param listener
+	 */
+	public void onComplete(Consumer<Response> listener) {
+		this.listener = this.listener == null ? listener : this.listener.andThen(listener);
+	}
+
+	/**
+	 * Waits, without being interruptible, until the request is answered and
+	 * returns its Response.
+	 * 
+	 * @return
+	 * @throws CompletionException
+	 *             wrapping the exception the request ended with, if it ended in
+	 *             an error
+	 */
 	public Response checkResponse() {
-		return this.future.join();
+		if (this.state == PENDING) {
+			await();
+		}
+		if (this.state == FAILED) {
+			throw new CompletionException(this.error);
+		}
+		return this.resp;
+	}
+
+	/**
+	 * Publishes the answer. The Response and error were written before the
+	 * volatile write of state, so a thread that reads the new state sees them.
+	 * 
+	 * A waiter registers before it reads state, and the completing thread writes
+	 * state before it reads waiters, so either the waiter sees the new state or
+	 * the completing thread sees the waiter and wakes it.
+	 * 
+	 * @param state
+	 */
+	private void complete(int state) {
+		this.state = state;
+		if (this.waiters != 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	private synchronized void await() {
+		boolean interrupted = false;
+		this.waiters++;
+		try {
+			while (this.state == PENDING) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			this.waiters--;
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * One thread's recycled requests. Only ever touched by its own thread.
+	 */
+	private static class Pool {
+		private Request[] requests = new Request[POOL_CAPACITY];
+		private int size = 0;
+
+		Request take() {
+			if (this.size == 0) {
+				return new Request();
+			}
+			Request req = this.requests[--this.size];
+			this.requests[this.size] = null;
+			req.pooled = false;
+			return req;
+		}
+
+		void put(Request req) {
+			if (this.size < this.requests.length) {
+				req.pooled = true;
+				this.requests[this.size++] = req;
+			}
+		}
 	}
 }
@@ -16,15 +16,28 @@ package piddle.sonos.si;
  * the Response toes the line of pushing Unit testing code into the application
  * logic, which i dont like.
  * 
+ * The time is a primitive long, Long.MIN_VALUE until the request is answered,
+ * so answering a request does not box it. A Response is recycled along with
+ * its Request (see Request.acquire).
+ * 
+ * A sender that ends its request with a reading of the QA team's QAClock also
+ * records the nanosecond time, which orders responses given in the same
+ * millisecond.
+ * 
+ * A request the QA team turned away also carries the earliest time worth
+ * trying again (see QAManager.getForecast).
+ * 
  * @author Scott
  *
  */
 public class Response implements Comparable<Response> {
-	private Long time = null;
+	private long time = Long.MIN_VALUE;
+	private long nanoTime = Long.MIN_VALUE;
 	private ResponseType type = null;
-	private String fulfilledBy = null;
+	private int fulfilledBy = -1;
+	private long retryAt = Long.MIN_VALUE;
 
-	public Response(Long time, ResponseType type) {
+	public Response(long time, ResponseType type) {
 		this.time = time;
 		this.type = type;
 	}
@@ -33,20 +46,61 @@ public class Response implements Comparable<Response> {
 
 	}
 
-	public Long getTime() {
+	/**
+	 * The time the request was answered, or Long.MIN_VALUE if it has not been.
+	 * 
+	 * @return
+	 */
+	public long getTime() {
 		return this.time;
 	}
 
 	public void setResponseTime(long time) {
-		this.time = new Long(time);
+		this.time = time;
+	}
+
+	/**
+	 * The QAClock's nanoTime when the request was answered, or Long.MIN_VALUE if
+	 * the sender did not record it.
+	 * 
+	 * @return
+	 */
+	public long getNanoTime() {
+		return this.nanoTime;
+	}
+
+	public void setResponseNanoTime(long nanoTime) {
+		this.nanoTime = nanoTime;
 	}
 
-	public String getFulfilledBy() {
+	/**
+	 * The id of the QA team member that consumed/accepted the request, or -1 if
+	 * none did. The QAManager's WorkerRegistry maps it to a display name.
+	 * 
+	 * @return
+	 */
+	public int getFulfilledBy() {
 		return this.fulfilledBy;
 	}
 
-	public void setFulfilledBy(String uuid) {
-		this.fulfilledBy = uuid;
+	public void setFulfilledBy(int workerId) {
+		this.fulfilledBy = workerId;
+	}
+
+	/**
+	 * The first millisecond a member is due to be free and off break, for a
+	 * request that was turned away. Long.MIN_VALUE if the request was not turned
+	 * away or the sender did not say, Long.MAX_VALUE if there is no member to wait
+	 * for.
+	 * 
+	 * @return
+	 */
+	public long getRetryAt() {
+		return this.retryAt;
+	}
+
+	public void setRetryAt(long retryAt) {
+		this.retryAt = retryAt;
 	}
 
 	public void setResponseType(ResponseType type) {
@@ -58,17 +112,28 @@ public class Response implements Comparable<Response> {
 	}
 
 	/**
-	 * Method required to use stream.sort
+	 * Clears the response so that its Request can be reused.
+	 */
+	void reset() {
+		this.time = Long.MIN_VALUE;
+		this.nanoTime = Long.MIN_VALUE;
+		this.type = null;
+		this.fulfilledBy = -1;
+		this.retryAt = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Method required to use stream.sort. Responses in the same millisecond are
+	 * ordered by their nanosecond time. A response without one has
+	 * Long.MIN_VALUE there, so it sorts ahead of those that have one. Comparing
+	 * the nanosecond times only when both responses had one would not be
+	 * transitive: two timed responses either side of an untimed one would each
+	 * equal it but not each other.
 	 */
 	@Override
 	public int compareTo(Response resp) {
-		if (this.time - resp.getTime().longValue() < 0) {
-			return -1;
-		} else if (this.time - resp.getTime().longValue() > 0) {
-			return 1;
-		} else {
-			return 0;
-		}
+		int order = Long.compare(this.time, resp.getTime());
+		return order != 0 ? order : Long.compare(this.nanoTime, resp.getNanoTime());
 	}
 
 }
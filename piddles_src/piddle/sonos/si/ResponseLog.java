@@ -0,0 +1,228 @@
+package piddle.sonos.si;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A compact, columnar record of every response of a run.
+ * 
+ * A Response object and its boxed time cost dozens of bytes per request. The
+ * log keeps the four things the analytics need in four primitive arrays
+ * instead: the response time (long), the QAClock nanoTime it was answered at
+ * (long, Long.MIN_VALUE if not recorded), the ResponseType ordinal (byte) and
+ * the id of the QA team member that consumed or accepted the request (int, -1
+ * if none). That is 21 bytes per request.
+ * 
+ * Appends claim a slot with a single atomic increment, so any number of request
+ * threads can append at once without a lock. The capacity is fixed up front.
+ * The log must only be read (sorted, counted, analyzed) once every append has
+ * happened-before the read, e.g. after every Request has been joined.
+ * 
+ * sortByTime orders the columns by time, and responses in the same millisecond
+ * by nanoTime, the same order as Response.compareTo. It is an LSD radix sort,
+ * first on the nanoTime and then on the time relative to the earliest
+ * response, which is linear in the number of responses.
+ * 
+ * @author Scott
+ *
+ */
+public class ResponseLog {
+
+	private static final ResponseType[] TYPES = ResponseType.values();
+	private static final int RADIX_BITS = 11;
+	private static final int RADIX = 1 << RADIX_BITS;
+
+	private long[] times = null;
+	private long[] nanos = null;
+	private byte[] types = null;
+	private int[] workers = null;
+	private AtomicInteger size = new AtomicInteger(0);
+
+	public ResponseLog(int capacity) {
+		this.times = new long[capacity];
+		this.nanos = new long[capacity];
+		this.types = new byte[capacity];
+		this.workers = new int[capacity];
+	}
+
+	/**
+	 * Appends an answered request.
+	 * 
+	 * @param resp
+	 */
+	public void append(Response resp) {
+		append(resp.getTime(), resp.getNanoTime(), resp.getResponseType(), resp.getFulfilledBy());
+	}
+
+	public void append(long time, ResponseType type, int worker) {
+		append(time, Long.MIN_VALUE, type, worker);
+	}
+
+	public void append(long time, long nanoTime, ResponseType type, int worker) {
+		int slot = this.size.getAndIncrement();
+		if (slot >= this.times.length) {
+			this.size.decrementAndGet();
+			throw new IllegalStateException(String.format("ResponseLog is full (capacity %s)",
+					String.valueOf(this.times.length)));
+		}
+		this.times[slot] = time;
+		this.nanos[slot] = nanoTime;
+		this.types[slot] = (byte) type.ordinal();
+		this.workers[slot] = worker;
+	}
+
+	public int size() {
+		return Math.min(this.size.get(), this.times.length);
+	}
+
+	public long getTime(int x) {
+		return this.times[x];
+	}
+
+	/**
+	 * The QAClock nanoTime response x was answered at, or Long.MIN_VALUE if the
+	 * sender did not record it.
+	 * 
+	 * @param x
+	 * @return
+	 */
+	public long getNanoTime(int x) {
+		return this.nanos[x];
+	}
+
+	public ResponseType getResponseType(int x) {
+		return TYPES[this.types[x]];
+	}
+
+	/**
+	 * The id of the QA team member that consumed or accepted response x, or -1.
+	 * 
+	 * @param x
+	 * @return
+	 */
+	public int getWorker(int x) {
+		return this.workers[x];
+	}
+
+	public long count(ResponseType type) {
+		byte ordinal = (byte) type.ordinal();
+		long count = 0;
+		for (int x = 0, n = size(); x < n; x++) {
+			if (this.types[x] == ordinal) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Sorts the log by time, then nanoTime. Stable, so responses with the same
+	 * time and nanoTime keep the order they were appended in.
+	 */
+	public void sortByTime() {
+		int n = size();
+		if (n < 2) {
+			return;
+		}
+
+		int[] order = new int[n];
+		for (int x = 0; x < n; x++) {
+			order[x] = x;
+		}
+
+		// LSD, so the minor key goes first and the time passes keep it in order
+		long[] nanoKeys = nanoKeys(n);
+		if (nanoKeys != null) {
+			order = radixSort(order, nanoKeys);
+		}
+		order = radixSort(order, this.times);
+
+		long[] sortedTimes = new long[this.times.length];
+		long[] sortedNanos = new long[this.nanos.length];
+		byte[] sortedTypes = new byte[this.types.length];
+		int[] sortedWorkers = new int[this.workers.length];
+		for (int x = 0; x < n; x++) {
+			sortedTimes[x] = this.times[order[x]];
+			sortedNanos[x] = this.nanos[order[x]];
+			sortedTypes[x] = this.types[order[x]];
+			sortedWorkers[x] = this.workers[order[x]];
+		}
+		this.times = sortedTimes;
+		this.nanos = sortedNanos;
+		this.types = sortedTypes;
+		this.workers = sortedWorkers;
+	}
+
+	/**
+	 * The nanoTimes as non-negative sort keys: 0 for a response without one, so
+	 * it sorts first, and 1 up for the rest. Null if no response has a
+	 * nanoTime.
+	 * 
+	 * @param n
+	 * @return
+	 */
+	private long[] nanoKeys(int n) {
+		long min = Long.MAX_VALUE;
+		for (int x = 0; x < n; x++) {
+			long nanoTime = this.nanos[x];
+			if (nanoTime != Long.MIN_VALUE) {
+				min = Math.min(min, nanoTime);
+			}
+		}
+		if (min == Long.MAX_VALUE) {
+			return null;
+		}
+
+		long[] keys = new long[n];
+		for (int x = 0; x < n; x++) {
+			long nanoTime = this.nanos[x];
+			keys[x] = nanoTime == Long.MIN_VALUE ? 0 : nanoTime - min + 1;
+		}
+		return keys;
+	}
+
+	/**
+	 * A stable LSD radix sort of order by keys[order[x]], on each key relative
+	 * to the smallest.
+	 * 
+	 * @param order
+	 * @param keys
+	 * @return order sorted, which may be a different array
+	 */
+	private static int[] radixSort(int[] order, long[] keys) {
+		int n = order.length;
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for (int x = 0; x < n; x++) {
+			min = Math.min(min, keys[order[x]]);
+			max = Math.max(max, keys[order[x]]);
+		}
+		long span = max - min;
+
+		int[] scratch = new int[n];
+		int[] counts = new int[RADIX];
+		for (int shift = 0; shift < 64 && (span >>> shift) != 0; shift += RADIX_BITS) {
+			Arrays.fill(counts, 0);
+			for (int x = 0; x < n; x++) {
+				counts[digit(keys[order[x]] - min, shift)]++;
+			}
+			for (int d = 0, total = 0; d < RADIX; d++) {
+				int count = counts[d];
+				counts[d] = total;
+				total += count;
+			}
+			for (int x = 0; x < n; x++) {
+				int slot = order[x];
+				scratch[counts[digit(keys[slot] - min, shift)]++] = slot;
+			}
+			int[] swap = order;
+			order = scratch;
+			scratch = swap;
+		}
+		return order;
+	}
+
+	private static int digit(long key, int shift) {
+		return (int) ((key >>> shift) & (RADIX - 1));
+	}
+}
@@ -0,0 +1,106 @@
+package piddle.sonos.si;
+
+import java.util.Arrays;
+
+/**
+ * Shows what the QAManager sale wait queue buys: runs the Main scenario on the
+ * SimulationEngine once per wait budget and prints, for each budget, the share
+ * of sales that were consumed and how long sales took to be answered.
+ * 
+ * Latency is measured from the moment a sale was sent to the moment it was
+ * answered, in virtual milliseconds, both for the consumed sales alone and for
+ * every sale (a rejected sale waits out its whole budget). A budget of 0 is
+ * the plain sellHydrant path, where every sale is answered at once.
+ * 
+ * The study runs once with Main's break rules, where breaks cap the sales a
+ * team can take whatever the budget, and once with looser ones, where the
+ * length of a test is the limit and waiting converts far more sales.
+ * 
+ * Every run is also checked by an InvariantVerifier, so a budget that broke the
+ * QA team rules would show up as violations.
+ * 
+ * @author Scott
+ *
+ */
+public class SaleWaitStudy {
+
+	public static void main(String args[]) {
+
+		/*@formatter:off
+		 * 
+		 * Study configuration variables
+		 * 
+		 * waitBudgets - the saleWaitMils values to compare
+		 * testsPerWindows - the break rules to compare the budgets under
+		 * saleWaitCapacity - the most sales that may wait at once
+		 * numInquiries, numQAWorkers, ... - the scenario, the same as Main's
+		 * 
+		 *@formatter:on
+		 */
+		int[] waitBudgets = { 0, 1, 2, 5, 10, 25, 50, 100, 200 };
+		int saleWaitCapacity = 64;
+		int numInquiries = 200000;
+		int numQAWorkers = 3;
+		int timeToCompleteJobMils = 50;
+		int[] testsPerWindows = { 5, 20 };
+		int windowLength = 600;
+		int salesPerInquery = 5;
+		long seed = 42;
+
+		for (int testsPerWindow : testsPerWindows) {
+			System.out.println(String.format("%s tests per %s milisecond window", testsPerWindow,
+					windowLength));
+			System.out.println(String.format("%8s %8s %10s %12s %12s %10s %10s %10s", "budget",
+					"consumed", "conversion", "consumed p50", "consumed p99", "all p50", "all p99",
+					"violations"));
+			for (int budget : waitBudgets) {
+				runBudget(budget, saleWaitCapacity, numInquiries, numQAWorkers,
+						timeToCompleteJobMils, testsPerWindow, windowLength, salesPerInquery, seed);
+			}
+			System.out.println("");
+		}
+	}
+
+	private static void runBudget(int budget, int saleWaitCapacity, int numInquiries,
+			int numQAWorkers, int timeToCompleteJobMils, int testsPerWindow, int windowLength,
+			int salesPerInquery, long seed) {
+		InvariantVerifier verifier = new InvariantVerifier(timeToCompleteJobMils,
+				testsPerWindow, windowLength);
+		long[] latencies = new long[numInquiries / salesPerInquery + 1];
+		long[] consumedLatencies = new long[latencies.length];
+		int[] sales = { 0 };
+		int[] consumed = { 0 };
+
+		SimulationEngine engine = new SimulationEngine(numQAWorkers, timeToCompleteJobMils,
+				testsPerWindow, windowLength, salesPerInquery, seed);
+		engine.setSaleWait(budget, saleWaitCapacity);
+		engine.run(numInquiries, req -> {
+			Response resp = req.getResponse();
+			verifier.accept(resp);
+			ResponseType type = resp.getResponseType();
+			if (type == ResponseType.CONSUMED || type == ResponseType.REJECTED) {
+				long latency = resp.getTime() - req.getSentTime();
+				latencies[sales[0]++] = latency;
+				if (type == ResponseType.CONSUMED) {
+					consumedLatencies[consumed[0]++] = latency;
+				}
+			}
+		});
+
+		long[] all = Arrays.copyOf(latencies, sales[0]);
+		long[] ok = Arrays.copyOf(consumedLatencies, consumed[0]);
+		Arrays.sort(all);
+		Arrays.sort(ok);
+		System.out.println(String.format("%8d %8d %9.2f%% %12d %12d %10d %10d %10d", budget,
+				consumed[0], 100.0 * consumed[0] / Math.max(1, sales[0]),
+				percentile(ok, 0.50), percentile(ok, 0.99), percentile(all, 0.50),
+				percentile(all, 0.99), verifier.getViolationCount()));
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+	}
+}
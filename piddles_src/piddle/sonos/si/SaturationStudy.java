@@ -0,0 +1,85 @@
+package piddle.sonos.si;
+
+import java.util.List;
+
+/**
+ * Finds the request rate at which a QAManager saturates: drives Main's
+ * scenario open loop with a LoadGenerator at a rising Poisson rate, doubling
+ * it every step, until the p99 latency from the intended send time passes the
+ * budget or the senders cannot keep up with the rate asked for.
+ *
+ * Each step prints the rate asked for and achieved, the latency percentiles,
+ * how far behind schedule the senders fell, and the share of sales that were
+ * consumed. A warm up run at the first rate goes before the ramp and is not
+ * reported. Every response is also checked by an InvariantVerifier.
+ *
+ * @author Scott
+ *
+ */
+public class SaturationStudy {
+
+	public static void main(String args[]) {
+
+		/*@formatter:off
+		 *
+		 * Study configuration variables
+		 *
+		 * startPerSec, maxPerSec - the first and the highest rate to try, in requests per second
+		 * stepSeconds - how long each rate is held
+		 * latencyBudgetMicros - a step whose p99 latency is above this has saturated
+		 * loadThreads - the number of sender threads
+		 * workerMode - how the QA team's threadpool runs tasks (see ExecutorMode)
+		 * numQAWorkers, ... - the scenario, the same as Main's
+		 *
+		 *@formatter:on
+		 */
+		double startPerSec = 500;
+		double maxPerSec = 1024000;
+		double stepSeconds = 1;
+		long latencyBudgetMicros = 20000;
+		int loadThreads = 4;
+		ExecutorMode workerMode = ExecutorMode.FIXED;
+		int numQAWorkers = 3;
+		int timeToCompleteJobMils = 50;
+		int testsPerWindow = 5;
+		int windowLength = 600;
+		int salesPerInquery = 5;
+		long seed = 42;
+
+		QAManager manager = new QAManager(numQAWorkers,
+				Math.max(2, Runtime.getRuntime().availableProcessors() - 1), workerMode,
+				timeToCompleteJobMils, testsPerWindow, windowLength);
+		InvariantVerifier verifier = new InvariantVerifier(timeToCompleteJobMils, testsPerWindow,
+				windowLength);
+		LoadGenerator generator = new LoadGenerator(manager, loadThreads, salesPerInquery);
+
+		// class loading and JIT compilation would otherwise make the first step look
+		// saturated
+		generator.run(LoadGenerator.constant(startPerSec), (int) (startPerSec * stepSeconds),
+				verifier::accept);
+
+		System.out.println(String.format("%10s %10s %8s %8s %8s %10s %10s %10s", "target/s",
+				"achieved/s", "p50 us", "p99 us", "max us", "max lag us", "conversion",
+				"violations"));
+		List<LoadGenerator.Run> steps = generator.ramp(startPerSec, 2, maxPerSec, stepSeconds,
+				latencyBudgetMicros, seed, verifier::accept);
+		for (LoadGenerator.Run step : steps) {
+			long consumed = step.count(ResponseType.CONSUMED);
+			long sales = consumed + step.count(ResponseType.REJECTED);
+			System.out.println(String.format("%10.0f %10.0f %8d %8d %8d %10d %9.2f%% %10d",
+					step.getTargetPerSec(), step.getAchievedPerSec(),
+					step.getLatencyPercentileMicros(0.50), step.getLatencyPercentileMicros(0.99),
+					step.getMaxLatencyMicros(), step.getMaxLagMicros(),
+					100.0 * consumed / Math.max(1, sales), verifier.getViolationCount()));
+		}
+
+		LoadGenerator.Run last = steps.get(steps.size() - 1);
+		if (last.isSaturated(latencyBudgetMicros)) {
+			System.out.println(String.format("Saturated at %.0f requests/sec", last.getTargetPerSec()));
+		} else {
+			System.out.println(String.format("Not saturated at %.0f requests/sec",
+					last.getTargetPerSec()));
+		}
+		manager.shutDown();
+	}
+}
@@ -0,0 +1,102 @@
+package piddle.sonos.si;
+
+/**
+ * The SelectionPolicy enum decides which free, off break member the
+ * AvailabilityIndex hands to a sale.
+ * 
+ * @formatter:off
+ * 
+ * 				FIFO                  -- the member that has been free the longest, i.e. the
+ *                                         first to be put back in the index. A member coming
+ *                                         back from a break joins the end of the line. The
+ *                                         default, and the only policy that keeps the index's
+ *                                         lock free queue.
+ * 
+ *                LIST_ORDER            -- the member with the lowest id, the way the team was
+ *                                         picked before the index existed. Member 0 takes every
+ *                                         sale until it goes on break. Kept as a baseline.
+ * 
+ *                ROUND_ROBIN           -- the member that has taken the fewest tests, lowest
+ *                                         id first, so the team takes turns in id order.
+ * 
+ *                LEAST_RECENTLY_USED   -- the member whose last test started the longest ago.
+ *                                         Unlike FIFO, a member back from a break is first in
+ *                                         line.
+ * 
+ *                MOST_BUDGET           -- the member with the most tests left in its window.
+ * 
+ *                EARLIEST_BREAK_EXPIRY -- the member that this test would not put on break,
+ *                                         and failing that the one whose break would end
+ *                                         soonest.
+ * 
+ * @formatter:on
+ * 
+ * A member's rank is worked out when it is put in the index, either when its
+ * test completes or when its break is found to be over. ROUND_ROBIN,
+ * LEAST_RECENTLY_USED and LIST_ORDER rank on things that do not change while
+ * the member waits. MOST_BUDGET and EARLIEST_BREAK_EXPIRY rank on its window,
+ * which empties as time passes, so they also say when the rank next changes
+ * (see rankChangesAt). The AvailabilityIndex ranks the member again once that
+ * time has passed, the same way it ends breaks, so a sale is always given the
+ * member these policies would pick at its curTime. Ties go to the lowest id.
+ * 
+ * The ranked policies keep the idle members in a skip list ordered by rank,
+ * which costs an allocation per release and a log(team size) insert, where
+ * FIFO costs neither. MOST_BUDGET and EARLIEST_BREAK_EXPIRY also re-rank a
+ * waiting member up to once per test in its window.
+ * 
+ * @author Scott
+ *
+ */
+public enum SelectionPolicy {
+	FIFO, LIST_ORDER, ROUND_ROBIN, LEAST_RECENTLY_USED, MOST_BUDGET, EARLIEST_BREAK_EXPIRY;
+
+	/**
+	 * The member's place in line at curTime. Lower goes first. Not used by FIFO.
+	 * 
+	 * @param member
+	 * @param curTime
+	 * @return
+	 */
+	long rank(QATeamMember member, long curTime) {
+		switch (this) {
+		case ROUND_ROBIN:
+			return member.getTestCount();
+		case LEAST_RECENTLY_USED:
+			return member.getLastTestStart();
+		case MOST_BUDGET:
+			return -member.getTestsLeft(curTime);
+		case EARLIEST_BREAK_EXPIRY:
+			// with one test per window every test puts the member on break for a whole
+			// window, so no member is better than another
+			return member.getTestsPerWindow() == 1 ? 0 : member.getNextBreakEnd(curTime);
+		case LIST_ORDER:
+		case FIFO:
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * The last millisecond rank(member, curTime) holds for a member that waits in
+	 * the index, or Long.MAX_VALUE if it holds for as long as the member waits.
+	 * 
+	 * @param member
+	 * @param curTime
+	 * @return
+	 */
+	long rankChangesAt(QATeamMember member, long curTime) {
+		switch (this) {
+		case MOST_BUDGET:
+			return member.getNextSlotExpiry(curTime);
+		case EARLIEST_BREAK_EXPIRY:
+			if (member.getTestsPerWindow() == 1) {
+				return Long.MAX_VALUE;
+			}
+			long breakEnd = member.getNextBreakEnd(curTime);
+			return breakEnd == Long.MIN_VALUE ? Long.MAX_VALUE : breakEnd;
+		default:
+			return Long.MAX_VALUE;
+		}
+	}
+}
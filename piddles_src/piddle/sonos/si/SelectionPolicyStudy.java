@@ -0,0 +1,103 @@
+package piddle.sonos.si;
+
+/**
+ * Compares the SelectionPolicies: runs the Main scenario on the
+ * SimulationEngine once per policy for every combination of team size, break
+ * rules and sale mix, and prints the share of sales each policy consumed.
+ * 
+ * The runs are in virtual time and every policy sees the same arrivals for a
+ * given seed, so a difference between two columns is the policy alone. The
+ * best policy of each row is marked with a *. Every run is also checked by an
+ * InvariantVerifier, and the total number of violations is printed at the end.
+ * 
+ * @author Scott
+ *
+ */
+public class SelectionPolicyStudy {
+
+	public static void main(String args[]) {
+
+		/*@formatter:off
+		 * 
+		 * Study configuration variables
+		 * 
+		 * policies - the SelectionPolicies to compare
+		 * numQAWorkerses, testsPerWindows, windowLengths, salesPerInqueries - the Main parameters to vary
+		 * numInquiries, timeToCompleteJobMils, seed - the rest of the scenario, the same as Main's
+		 * 
+		 *@formatter:on
+		 */
+		SelectionPolicy[] policies = SelectionPolicy.values();
+		int[] numQAWorkerses = { 3, 10 };
+		int[] testsPerWindows = { 2, 5, 20 };
+		int[] windowLengths = { 300, 600, 1200 };
+		int[] salesPerInqueries = { 1, 5 };
+		int numInquiries = 200000;
+		int timeToCompleteJobMils = 50;
+		long seed = 42;
+
+		StringBuilder header = new StringBuilder(
+				String.format("%7s %6s %6s %9s", "workers", "tests", "window", "sales/inq"));
+		for (SelectionPolicy policy : policies) {
+			header.append(String.format(" %22s", policy));
+		}
+		System.out.println(header);
+
+		long violations = 0;
+		for (int numQAWorkers : numQAWorkerses) {
+			for (int testsPerWindow : testsPerWindows) {
+				for (int windowLength : windowLengths) {
+					for (int salesPerInquery : salesPerInqueries) {
+						double[] conversions = new double[policies.length];
+						int best = 0;
+						for (int p = 0; p < policies.length; p++) {
+							InvariantVerifier verifier = new InvariantVerifier(timeToCompleteJobMils,
+									testsPerWindow, windowLength);
+							conversions[p] = run(policies[p], verifier, numInquiries, numQAWorkers,
+									timeToCompleteJobMils, testsPerWindow, windowLength,
+									salesPerInquery, seed);
+							violations += verifier.getViolationCount();
+							if (conversions[p] > conversions[best]) {
+								best = p;
+							}
+						}
+
+						StringBuilder row = new StringBuilder(String.format("%7d %6d %6d %9d",
+								numQAWorkers, testsPerWindow, windowLength, salesPerInquery));
+						for (int p = 0; p < policies.length; p++) {
+							row.append(String.format(" %20.2f%%%s", conversions[p],
+									conversions[p] == conversions[best] ? "*" : " "));
+						}
+						System.out.println(row);
+					}
+				}
+			}
+		}
+		System.out.println(String.format("Invariant violations: %s", String.valueOf(violations)));
+	}
+
+	/**
+	 * One simulated run.
+	 * 
+	 * @return the percentage of sales consumed
+	 */
+	private static double run(SelectionPolicy policy, InvariantVerifier verifier,
+			int numInquiries, int numQAWorkers, int timeToCompleteJobMils, int testsPerWindow,
+			int windowLength, int salesPerInquery, long seed) {
+		long[] sales = { 0, 0 };
+		SimulationEngine engine = new SimulationEngine(numQAWorkers, timeToCompleteJobMils,
+				testsPerWindow, windowLength, salesPerInquery, seed);
+		engine.setSelectionPolicy(policy);
+		engine.run(numInquiries, req -> {
+			Response resp = req.getResponse();
+			verifier.accept(resp);
+			if (resp.getResponseType() == ResponseType.CONSUMED) {
+				sales[0]++;
+				sales[1]++;
+			} else if (resp.getResponseType() == ResponseType.REJECTED) {
+				sales[1]++;
+			}
+		});
+		return 100.0 * sales[0] / Math.max(1, sales[1]);
+	}
+}
@@ -0,0 +1,209 @@
+package piddle.sonos.si;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A QAManager split into shards so that request threads on different cores do
+ * not all contend on the same members, the same availability index and the
+ * same pool.
+ * 
+ * The team is partitioned into numShards QAManagers, each with its own
+ * ThreadSafeThreadPoolManager and AvailabilityIndex. The shards share one
+ * WorkerRegistry, so member ids stay unique across the shards and responses
+ * can be verified and analyzed as if they came from a single manager.
+ * 
+ * addMember puts a new member in the smallest shard, and retireMember finds
+ * the member in whichever shard has it.
+ * 
+ * Each request thread has a home shard picked by hashing its thread id, so a
+ * thread always lands on the same shard without any lookup. A request is served by its home shard and only steals
+ * from a sibling shard when its home shard has nobody free. Siblings are
+ * checked through their published availability first, so a miss costs a
+ * volatile read per shard.
+ * 
+ * A member belongs to exactly one shard and is only tested through it, so the
+ * test length and break rules hold exactly as they do for one QAManager.
+ * 
+ * A request no shard could serve is told to retry at the earliest forecast of
+ * any shard, since the caller may be served by whichever shard frees up first.
+ * 
+ * @author Scott
+ *
+ */
+public class ShardedQAManager {
+
+	private QAManager[] shards = null;
+	private WorkerRegistry registry = new WorkerRegistry();
+	private LongAdder steals = new LongAdder();
+
+	/**
+	 * @param teamSize
+	 * @param numShards
+	 *            the number of shards. Every shard gets at least one member
+	 * @param threadsPerShard
+	 *            the size of each shard's threadpool
+	 * @param mode
+	 *            how the shards' threadpools run their tasks
+	 * @param timeToCompleteJobMils
+	 * @param testsPerWindow
+	 * @param windowLength
+	 */
+	public ShardedQAManager(int teamSize, int numShards, int threadsPerShard, ExecutorMode mode,
+			int timeToCompleteJobMils, int testsPerWindow, int windowLength) {
+
+		numShards = Math.max(1, Math.min(numShards, teamSize));
+		this.shards = new QAManager[numShards];
+
+		for (int s = 0; s < numShards; s++) {
+			int shardSize = teamSize / numShards + (s < teamSize % numShards ? 1 : 0);
+			this.shards[s] = new QAManager(shardSize, this.registry,
+					new ThreadSafeThreadPoolManager(threadsPerShard, mode), timeToCompleteJobMils,
+					testsPerWindow, windowLength);
+		}
+	}
+
+	/**
+	 * Returns true if a QA worker is currently available in any shard. false
+	 * otherwise. Does NOT count against the QA worker capacity.
+	 * 
+	 * @param curTime
+	 * @param req
+	 * @return
+	 */
+	public boolean canSellHydrant(long curTime, Request req) {
+		int home = home();
+		if (this.shards[home].canSellHydrant(curTime, req)) {
+			return true;
+		}
+		for (int x = 1; x < this.shards.length; x++) {
+			QAManager shard = this.shards[(home + x) % this.shards.length];
+			if (shard.isAvailable(curTime) && shard.canSellHydrant(curTime, req)) {
+				// set by the home shard when it turned the request away
+				req.getResponse().setRetryAt(Long.MIN_VALUE);
+				return true;
+			}
+		}
+		req.getResponse().setRetryAt(getForecast(curTime));
+		return false;
+	}
+
+	/**
+	 * Returns true if a QA worker is available in the caller's home shard or,
+	 * failing that, in a sibling shard. false otherwise. DOES count against QA
+	 * worker capacity.
+	 * 
+	 * @param curTime
+	 * @param req
+	 * @return
+	 */
+	public boolean sellHydrant(long curTime, Request req) {
+		int home = home();
+		if (this.shards[home].sellHydrant(curTime, req)) {
+			return true;
+		}
+		for (int x = 1; x < this.shards.length; x++) {
+			QAManager shard = this.shards[(home + x) % this.shards.length];
+			if (shard.isAvailable(curTime) && shard.sellHydrant(curTime, req)) {
+				this.steals.increment();
+				// set by the home shard when it turned the request away
+				req.getResponse().setRetryAt(Long.MIN_VALUE);
+				return true;
+			}
+		}
+		req.getResponse().setRetryAt(getForecast(curTime));
+		return false;
+	}
+
+	/**
+	 * The earliest time, no earlier than curTime, that a member of any shard is
+	 * due to be free and off break. See QAManager.getForecast.
+	 * 
+	 * @param curTime
+	 * @return
+	 */
+	public long getForecast(long curTime) {
+		long forecast = Long.MAX_VALUE;
+		for (QAManager shard : this.shards) {
+			forecast = Math.min(forecast, shard.getForecast(curTime));
+		}
+		return forecast;
+	}
+
+	/**
+	 * The caller's home shard.
+	 * 
+	 * @return
+	 */
+	private int home() {
+		return (int) (Thread.currentThread().getId() % this.shards.length);
+	}
+
+	/**
+	 * Adds a member to the shard with the smallest team.
+	 * 
+	 * @param name
+	 *            the member's display name. null for "QA Member <id>"
+	 * @return the new member's id
+	 */
+	public synchronized int addMember(String name) {
+		QAManager smallest = this.shards[0];
+		for (QAManager shard : this.shards) {
+			if (shard.getTeamSize() < smallest.getTeamSize()) {
+				smallest = shard;
+			}
+		}
+		return smallest.addMember(name);
+	}
+
+	/**
+	 * @param id
+	 * @return false if no shard has the member
+	 */
+	public synchronized boolean retireMember(int id) {
+		for (QAManager shard : this.shards) {
+			if (shard.retireMember(id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public WorkerRegistry getRegistry() {
+		return this.registry;
+	}
+
+	public int getNumShards() {
+		return this.shards.length;
+	}
+
+	/**
+	 * The number of sales served by a shard other than the caller's home shard.
+	 * 
+	 * @return
+	 */
+	public long getSteals() {
+		return this.steals.sum();
+	}
+
+	public double getMeanCompletionJitterMils() {
+		double total = 0;
+		for (QAManager shard : this.shards) {
+			total += shard.getMeanCompletionJitterMils();
+		}
+		return total / this.shards.length;
+	}
+
+	public double getMaxCompletionJitterMils() {
+		double max = 0;
+		for (QAManager shard : this.shards) {
+			max = Math.max(max, shard.getMaxCompletionJitterMils());
+		}
+		return max;
+	}
+
+	public void shutDown() {
+		for (QAManager shard : this.shards) {
+			shard.shutDown();
+		}
+	}
+}
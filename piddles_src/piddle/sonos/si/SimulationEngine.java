@@ -0,0 +1,289 @@
+package piddle.sonos.si;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The SimulationEngine runs a QAManager scenario on a virtual clock instead of
+ * the wall clock.
+ * 
+ * The engine is a discrete event simulation. Every request arrival and every
+ * test completion is an event in a priority queue ordered by virtual time. The
+ * engine pops the earliest event, moves the clock to its time and runs it, so
+ * nothing ever sleeps. A day of traffic runs in as long as it takes to process
+ * the events, and the same seed always gives the same result.
+ * 
+ * The QA team is the regular QAManager and QATeamMember code. The engine only
+ * swaps out their sense of time: the team's threadpool runs tasks inline
+ * (ExecutorMode.INLINE) and the engine itself is the TaskTimer that finishes
+ * tests, so a test completion becomes an event timeToCompleteJobMils later in
+ * virtual time.
+ * 
+ * Requests arrive the way Main.runTest sends them: one after another, each
+ * 1-5 milliseconds after the previous one, with every salesPerInquery-th
+ * request being a sellHydrant call and the rest canSellHydrant calls. When a
+ * completion and an arrival fall on the same millisecond the completion runs
+ * first, just like a worker that finished exactly timeToCompleteJobMils ago is
+ * free in the wall clock version.
+ * 
+ * @author Scott
+ *
+ */
+public class SimulationEngine implements TaskTimer {
+
+	private static final int COMPLETION = 0;
+	private static final int ARRIVAL = 1;
+
+	// virtual time starts at a fixed epoch millisecond so that simulated times
+	// look like, and are checked the same way as, wall clock times
+	private static final long START_TIME = 1500000000000L;
+
+	private PriorityQueue<Event> events = new PriorityQueue<Event>();
+	private long now = START_TIME;
+	private long seq = 0;
+	private long fired = 0;
+	private Random random = null;
+
+	private int numQAWorkers = 0;
+	private int timeToCompleteJobMils = 0;
+	private int testsPerWindow = 0;
+	private int windowLength = 0;
+	private int salesPerInquery = 0;
+
+	private QAManager manager = null;
+	private Consumer<Request> listener = null;
+	private AuditJournal journal = null;
+	private int saleWaitMils = 0;
+	private int saleWaitCapacity = 0;
+	private SelectionPolicy selectionPolicy = SelectionPolicy.FIFO;
+	private Runnable arrival = this::arrive;
+	private int sent = 0;
+	private int numInquiries = 0;
+
+	/**
+	 * @param numQAWorkers
+	 * @param timeToCompleteJobMils
+	 * @param testsPerWindow
+	 * @param windowLength
+	 * @param salesPerInquery
+	 * @param seed
+	 *            seeds the random time between requests
+	 */
+	public SimulationEngine(int numQAWorkers, int timeToCompleteJobMils, int testsPerWindow,
+			int windowLength, int salesPerInquery, long seed) {
+		this.numQAWorkers = numQAWorkers;
+		this.timeToCompleteJobMils = timeToCompleteJobMils;
+		this.testsPerWindow = testsPerWindow;
+		this.windowLength = windowLength;
+		this.salesPerInquery = salesPerInquery;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Runs numInquiries requests through a fresh QA team and returns them, all
+	 * answered, in the order they were sent.
+	 * 
+	 * @param numInquiries
+	 * @return
+	 */
+	public ArrayList<Request> run(int numInquiries) {
+		ArrayList<Request> requests = new ArrayList<Request>();
+		run(numInquiries, requests::add);
+		return requests;
+	}
+
+	/**
+	 * Runs numInquiries requests through a fresh QA team and hands each one to
+	 * listener as soon as it is answered. Nothing is kept once the listener
+	 * returns, so a run of any length uses constant memory.
+	 * 
+	 * @param numInquiries
+	 * @param listener
+	 */
+	public void run(int numInquiries, Consumer<Request> listener) {
+		this.events.clear();
+		this.now = START_TIME;
+		this.sent = 0;
+		this.numInquiries = numInquiries;
+		this.listener = listener;
+		this.manager = new QAManager(this.numQAWorkers,
+				new ThreadSafeThreadPoolManager(1, ExecutorMode.INLINE, this),
+				this.timeToCompleteJobMils, this.testsPerWindow, this.windowLength);
+		this.manager.setSaleWait(this.saleWaitMils, this.saleWaitCapacity);
+		this.manager.setSelectionPolicy(this.selectionPolicy);
+
+		if (numInquiries > 0) {
+			push(this.now + nextGap(), ARRIVAL, this.arrival);
+		}
+
+		Event event;
+		while ((event = this.events.poll()) != null) {
+			this.now = event.time;
+			if (event.kind == COMPLETION) {
+				this.fired++;
+			}
+			event.task.run();
+		}
+
+		this.manager.shutDown();
+		this.manager = null;
+		this.listener = null;
+	}
+
+	/**
+	 * Journals every request of later runs, with virtual times. null turns the
+	 * journal off.
+	 * 
+	 * @param journal
+	 */
+	public void setJournal(AuditJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Turns on QAManager's sale wait queue for later runs. Sales then go through
+	 * submitSale and are handed to the listener whenever they are answered.
+	 * 
+	 * @param maxWaitMils
+	 *            0 turns waiting off
+	 * @param capacity
+	 */
+	public void setSaleWait(int maxWaitMils, int capacity) {
+		this.saleWaitMils = maxWaitMils;
+		this.saleWaitCapacity = capacity;
+	}
+
+	/**
+	 * Sets the QAManager's SelectionPolicy for later runs.
+	 * 
+	 * @param policy
+	 */
+	public void setSelectionPolicy(SelectionPolicy policy) {
+		this.selectionPolicy = policy;
+	}
+
+	/**
+	 * The current virtual time in milliseconds.
+	 * 
+	 * @return
+	 */
+	public long getTime() {
+		return this.now;
+	}
+
+	@Override
+	public void schedule(Runnable task, long delayMils) {
+		push(this.now + delayMils, COMPLETION, task);
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return this.now;
+	}
+
+	/**
+	 * Virtual time only moves in whole milliseconds.
+	 */
+	@Override
+	public long nanoTime() {
+		return TimeUnit.MILLISECONDS.toNanos(this.now);
+	}
+
+	/**
+	 * Events run exactly on time in virtual time.
+	 */
+	@Override
+	public long getMeanJitterNanos() {
+		return 0;
+	}
+
+	@Override
+	public long getMaxJitterNanos() {
+		return 0;
+	}
+
+	@Override
+	public long getResolutionNanos() {
+		return 0;
+	}
+
+	@Override
+	public long getFiredCount() {
+		return this.fired;
+	}
+
+	@Override
+	public void shutDown() {
+		this.events.clear();
+	}
+
+	private int nextGap() {
+		return 1 + this.random.nextInt(5);
+	}
+
+	/**
+	 * A request arrives at the QA manager. Answers it and schedules the arrival
+	 * of the next one.
+	 */
+	private void arrive() {
+		int x = this.sent++;
+		Request req = this.journal == null ? new Request() : new Request(this.journal, this.now);
+		req.setSentTime(this.now);
+		// a waiting sale is answered later, from a completion or expiry event
+		Consumer<Request> listener = this.listener;
+		req.onComplete(resp -> listener.accept(req));
+
+		// sellHydrant counts against qa worker capacity
+		if (x % this.salesPerInquery == 0 && this.saleWaitMils > 0) {
+			this.manager.submitSale(this.now, req);
+		} else if (x % this.salesPerInquery == 0) {
+			if (this.manager.sellHydrant(this.now, req)) {
+				req.end(ResponseType.CONSUMED, this.now, nanoTime());
+			} else {
+				req.end(ResponseType.REJECTED, this.now, nanoTime());
+			}
+		} else {
+			if (this.manager.canSellHydrant(this.now, req)) {
+				req.end(ResponseType.TEST_ACCEPT, this.now, nanoTime());
+			} else {
+				req.end(ResponseType.TEST_REJ, this.now, nanoTime());
+			}
+		}
+
+		if (this.sent < this.numInquiries) {
+			push(this.now + nextGap(), ARRIVAL, this.arrival);
+		}
+	}
+
+	private void push(long time, int kind, Runnable task) {
+		this.events.add(new Event(time, kind, this.seq++, task));
+	}
+
+	private static class Event implements Comparable<Event> {
+		private long time;
+		private int kind;
+		private long seq;
+		private Runnable task;
+
+		Event(long time, int kind, long seq, Runnable task) {
+			this.time = time;
+			this.kind = kind;
+			this.seq = seq;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Event event) {
+			if (this.time != event.time) {
+				return Long.compare(this.time, event.time);
+			} else if (this.kind != event.kind) {
+				return Integer.compare(this.kind, event.kind);
+			} else {
+				return Long.compare(this.seq, event.seq);
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package piddle.sonos.si;
+
+/**
+ * A TaskTimer runs a task once a delay has passed. ThreadSafeThreadPoolManager
+ * uses one to finish QA tests on time.
+ * 
+ * HashedWheelTimer is the real time implementation. SimulationEngine is a
+ * virtual clock implementation that lets a whole scenario run without waiting
+ * for real time to pass.
+ * 
+ * A timer is also the QAClock its tasks are scheduled on, so that the times
+ * the QA team reads and the delays it schedules agree.
+ * 
+ * @author Scott
+ *
+ */
+public interface TaskTimer extends QAClock {
+
+	/**
+	 * Runs task once delayMils have passed. Must never run it early.
+	 * 
+	 * @param task
+	 * @param delayMils
+	 */
+	public void schedule(Runnable task, long delayMils);
+
+	/**
+	 * Average time, in nanoseconds, between a task's deadline and the moment it
+	 * started running.
+	 * 
+	 * @return
+	 */
+	public long getMeanJitterNanos();
+
+	public long getMaxJitterNanos();
+
+	/**
+	 * How late the timer itself may run a task, in nanoseconds, before the
+	 * executor adds any delay of its own. 0 for a timer that runs tasks exactly
+	 * at their deadline.
+	 * 
+	 * @return
+	 */
+	public long getResolutionNanos();
+
+	/**
+	 * The number of tasks run so far.
+	 * 
+	 * @return
+	 */
+	public long getFiredCount();
+
+	public void shutDown();
+}
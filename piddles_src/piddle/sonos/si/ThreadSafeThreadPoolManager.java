@@ -1,15 +1,30 @@
 package piddle.sonos.si;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The ThreadPoolManager is a wrapper that facilitates use of a thread safe
  * ExecutorService. All the QA team members are executing jobs on
- * asynchronously. In order to ensure synchronous access to the shared
- * ThreadPool, this method uses synchronized functions to wrap submission of
- * runnables.
+ * asynchronously. Submission used to be wrapped in synchronized methods, but
+ * ExecutorService.submit is already thread safe, and the monitor made every
+ * runTest across the team queue up behind one lock. Submission now goes
+ * straight to the backend chosen by ExecutorMode, and the time each
+ * submission takes is recorded so the backends can be compared. It is also
+ * emitted as a QAEvents.Submit event when a flight recording turns that on.
+ * 
+ * Tests that have to finish at a given time are scheduled on a
+ * HashedWheelTimer rather than sleeping on a pool thread, so the number of
+ * in-flight tests is not capped by the size of the pool. When a test's deadline
+ * passes, the timer hands its completion to the pool. Any other TaskTimer can
+ * be plugged in instead, e.g. the virtual clock of the SimulationEngine.
  * 
  * @author Scott
  *
@@ -19,25 +34,176 @@ public class ThreadSafeThreadPoolManager {
 
 	private ExecutorService exec = null;
 	private int maxConcurThreads = 0;
+	private TaskTimer timer = null;
+	private LongAdder submitted = new LongAdder();
+	private LongAdder totalSubmitNanos = new LongAdder();
+	private LongAccumulator maxSubmitNanos = new LongAccumulator(Long::max, 0);
 
 	public ThreadSafeThreadPoolManager(int numThreads) {
+		this(numThreads, ExecutorMode.FIXED);
+	}
+
+	public ThreadSafeThreadPoolManager(int numThreads, ExecutorMode mode) {
+		this(numThreads, mode, null);
+	}
+
+	/**
+	 * @param numThreads
+	 * @param mode
+	 * @param timer
+	 *            the timer that finishes tests. null for a HashedWheelTimer that
+	 *            runs on the wall clock
+	 */
+	public ThreadSafeThreadPoolManager(int numThreads, ExecutorMode mode, TaskTimer timer) {
 		this.maxConcurThreads = Runtime.getRuntime().availableProcessors();
 
-		if (numThreads > maxConcurThreads) {
+		if (mode != ExecutorMode.VIRTUAL && mode != ExecutorMode.INLINE
+				&& numThreads > maxConcurThreads) {
 			System.out.println(
 					"Warning: ThreadPool size is larger than available threads. This can lead to resource thrashing.");
 		}
 
-		this.exec = Executors.newFixedThreadPool(numThreads);
+		this.exec = mode.create(numThreads);
+		this.timer = timer != null ? timer : new HashedWheelTimer(this::execute, 1, 512);
+		if (this.exec instanceof AdaptiveExecutor) {
+			((AdaptiveExecutor) this.exec).setCompletionLagProbe(this.timer);
+		}
+		MetricsRegistry.getInstance().addPool(this);
+	}
+
+	public Future<?> submit(Runnable task) throws Exception {
+		QAEvents.Submit event = QAEvents.beginSubmit();
+		long start = System.nanoTime();
+		Future<?> future = this.exec.submit(task);
+		recordSubmit(System.nanoTime() - start);
+		commitSubmit(event, true);
+		return future;
+	}
+
+	/**
+	 * Same as submit but without creating a Future. Used for fire and forget tasks
+	 * such as test completions.
+	 * 
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		QAEvents.Submit event = QAEvents.beginSubmit();
+		long start = System.nanoTime();
+		this.exec.execute(task);
+		recordSubmit(System.nanoTime() - start);
+		commitSubmit(event, false);
+	}
+
+	private void commitSubmit(QAEvents.Submit event, boolean future) {
+		if (event == null) {
+			return;
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.future = future;
+			event.queueDepth = getQueueDepth();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Runs task on the pool once delayMils have passed. Nothing holds a pool
+	 * thread while waiting.
+	 * 
+	 * @param task
+	 * @param delayMils
+	 */
+	public void schedule(Runnable task, long delayMils) {
+		this.timer.schedule(task, delayMils);
+	}
+
+	/**
+	 * The number of tasks waiting for a pool thread. 0 for pools that do not
+	 * queue, e.g. VIRTUAL and INLINE.
+	 * 
+	 * @return
+	 */
+	public int getQueueDepth() {
+		if (this.exec instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) this.exec).getQueue().size();
+		} else if (this.exec instanceof ForkJoinPool) {
+			ForkJoinPool pool = (ForkJoinPool) this.exec;
+			return (int) (pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount());
+		}
+		return 0;
+	}
+
+	/**
+	 * The changes an ADAPTIVE pool made to its size, oldest first. Empty for
+	 * every other mode.
+	 * 
+	 * @return
+	 */
+	public List<AdaptiveExecutor.Decision> getPoolDecisions() {
+		if (this.exec instanceof AdaptiveExecutor) {
+			return ((AdaptiveExecutor) this.exec).getDecisions();
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * The time, in milliseconds, on the clock of the pool's timer. A
+	 * MonotonicClock unless a virtual clock was plugged in.
+	 * 
+	 * @return
+	 */
+	public long currentTimeMillis() {
+		return this.timer.currentTimeMillis();
+	}
+
+	/**
+	 * The clock of the pool's timer, which the QA team's tests run on.
+	 * 
+	 * @return
+	 */
+	public QAClock getClock() {
+		return this.timer;
 	}
 
-	public synchronized Future<?> submit(Runnable task) throws Exception {
-		return this.exec.submit(task);
+	/**
+	 * Average time, in milliseconds, between a scheduled task's deadline and the
+	 * moment it started running on the pool.
+	 * 
+	 * @return
+	 */
+	public double getMeanCompletionJitterMils() {
+		return this.timer.getMeanJitterNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1);
 	}
 
-	public synchronized void shutDown() {
+	public double getMaxCompletionJitterMils() {
+		return this.timer.getMaxJitterNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * Average time, in nanoseconds, a caller spent handing a task to the backend.
+	 * 
+	 * @return
+	 */
+	public long getMeanSubmitNanos() {
+		long count = this.submitted.sum();
+		return count == 0 ? 0 : this.totalSubmitNanos.sum() / count;
+	}
+
+	public long getMaxSubmitNanos() {
+		return this.maxSubmitNanos.get();
+	}
+
+	public void shutDown() {
+		MetricsRegistry.getInstance().removePool(this);
+		this.timer.shutDown();
 		if (!this.exec.isShutdown()) {
 			this.exec.shutdown();
 		}
 	}
+
+	private void recordSubmit(long nanos) {
+		this.submitted.increment();
+		this.totalSubmitNanos.add(nanos);
+		this.maxSubmitNanos.accumulate(nanos);
+	}
 }
@@ -0,0 +1,253 @@
+package piddle.sonos.si;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds sales until downstream asks for them, and answers REJECTED any sale
+ * that has waited longer than maxWaitMils.
+ * 
+ * A QATeamProcessor asks for sales only while its team has capacity, so
+ * without a timeout a sale sent to a busy team could wait for as long as the
+ * team stays busy. This processor sits in front of it, asks upstream for up to
+ * bufferSize sales, and forwards them as downstream demand allows. A sale's
+ * wait is measured from its sent time, which is set to the timer's clock on
+ * arrival if the sender did not set it, so senders that do set it must use the
+ * same clock. The timer wakes the processor when the oldest sale's wait is
+ * up, so a sale is rejected on time even when nothing else is happening.
+ * 
+ * Once the buffer is full no more sales are asked for, and sales back up into
+ * the publisher upstream. Every sale that leaves the buffer, forwarded or
+ * rejected, is replaced by asking upstream for one more.
+ * 
+ * Only one subscriber is supported. Sales still held when downstream cancels,
+ * or when upstream fails, are answered REJECTED so that no sender waits on
+ * them forever. When upstream completes, downstream is completed once the held
+ * sales have been forwarded or have timed out.
+ * 
+ * @author Scott
+ *
+ */
+public class TimeoutProcessor implements Flow.Processor<Request, Request> {
+
+	private TaskTimer timer = null;
+	private long maxWaitMils = 0;
+	private int bufferSize = 0;
+	private ConcurrentLinkedQueue<Request> held = new ConcurrentLinkedQueue<Request>();
+	private AtomicInteger wip = new AtomicInteger(0);
+	private AtomicLong demand = new AtomicLong(0);
+	private AtomicBoolean timerArmed = new AtomicBoolean(false);
+	private Runnable timerFired = this::timerFired;
+	private volatile Flow.Subscription upstream = null;
+	private volatile Flow.Subscriber<? super Request> downstream = null;
+	private volatile boolean upstreamDone = false;
+	private volatile boolean cancelled = false;
+	private boolean terminated = false;
+	private Throwable error = null;
+	private LongAdder forwarded = new LongAdder();
+	private LongAdder rejected = new LongAdder();
+
+	/**
+	 * @param timer
+	 *            the clock waits are measured on, and wakes the processor to
+	 *            reject sales on time
+	 * @param maxWaitMils
+	 *            how long a sale may be held
+	 * @param bufferSize
+	 *            the most sales held at once
+	 */
+	public TimeoutProcessor(TaskTimer timer, long maxWaitMils, int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("bufferSize must be positive");
+		}
+		this.timer = timer;
+		this.maxWaitMils = maxWaitMils;
+		this.bufferSize = bufferSize;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super Request> subscriber) {
+		synchronized (this) {
+			if (this.downstream == null) {
+				this.downstream = subscriber;
+				subscriber = null;
+			}
+		}
+		if (subscriber != null) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("TimeoutProcessor supports one subscriber"));
+			return;
+		}
+		this.downstream.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(long n) {
+				if (n <= 0) {
+					error(new IllegalArgumentException("non-positive request: " + n));
+					return;
+				}
+				long cur, next;
+				do {
+					cur = TimeoutProcessor.this.demand.get();
+					next = cur + n < 0 ? Long.MAX_VALUE : cur + n;
+				} while (!TimeoutProcessor.this.demand.compareAndSet(cur, next));
+				drain();
+			}
+
+			@Override
+			public void cancel() {
+				TimeoutProcessor.this.cancelled = true;
+				Flow.Subscription upstream = TimeoutProcessor.this.upstream;
+				if (upstream != null) {
+					upstream.cancel();
+				}
+				drain();
+			}
+		});
+		drain();
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (this.upstream != null) {
+			subscription.cancel();
+			return;
+		}
+		this.upstream = subscription;
+		subscription.request(this.bufferSize);
+	}
+
+	@Override
+	public void onNext(Request req) {
+		if (req.getSentTime() == Long.MIN_VALUE) {
+			req.setSentTime(this.timer.currentTimeMillis());
+		}
+		this.held.offer(req);
+		drain();
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		error(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		this.upstreamDone = true;
+		drain();
+	}
+
+	public long getForwarded() {
+		return this.forwarded.sum();
+	}
+
+	/**
+	 * The number of sales answered REJECTED, nearly always because they were
+	 * held too long. Sales dropped by a cancel or an upstream error count too.
+	 * 
+	 * @return
+	 */
+	public long getRejected() {
+		return this.rejected.sum();
+	}
+
+	private void error(Throwable throwable) {
+		synchronized (this) {
+			if (this.error == null) {
+				this.error = throwable;
+			}
+		}
+		this.upstreamDone = true;
+		drain();
+	}
+
+	private void timerFired() {
+		this.timerArmed.set(false);
+		drain();
+	}
+
+	/**
+	 * Forwards and expires held sales. Only one thread drains at a time; a
+	 * thread that calls drain while another is draining leaves the work to it,
+	 * and the draining thread loops until no such call was missed.
+	 */
+	private void drain() {
+		if (this.wip.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			Flow.Subscriber<? super Request> downstream = this.downstream;
+			long now = this.timer.currentTimeMillis();
+			long released = 0;
+			Throwable error;
+			synchronized (this) {
+				error = this.error;
+			}
+			Request head;
+			while ((head = this.held.peek()) != null) {
+				if (this.cancelled || error != null || now - head.getSentTime() > this.maxWaitMils) {
+					this.held.poll();
+					this.rejected.increment();
+					head.end(ResponseType.REJECTED, now, this.timer.nanoTime());
+					released++;
+					continue;
+				}
+				if (downstream == null || !takeDemand()) {
+					break;
+				}
+				this.held.poll();
+				this.forwarded.increment();
+				downstream.onNext(head);
+				released++;
+			}
+
+			Flow.Subscription upstream = this.upstream;
+			if (released > 0 && upstream != null && !this.upstreamDone && !this.cancelled) {
+				upstream.request(released);
+			}
+
+			if (downstream != null && !this.terminated && !this.cancelled && this.upstreamDone
+					&& this.held.isEmpty()) {
+				this.terminated = true;
+				if (error != null) {
+					downstream.onError(error);
+				} else {
+					downstream.onComplete();
+				}
+			}
+
+			head = this.held.peek();
+			if (head != null && !this.timerArmed.getAndSet(true)) {
+				this.timer.schedule(this.timerFired,
+						Math.max(0, head.getSentTime() + this.maxWaitMils - now) + 1);
+			}
+			missed = this.wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private boolean takeDemand() {
+		long cur;
+		do {
+			cur = this.demand.get();
+			if (cur == 0) {
+				return false;
+			}
+			if (cur == Long.MAX_VALUE) {
+				return true;
+			}
+		} while (!this.demand.compareAndSet(cur, cur - 1));
+		return true;
+	}
+}
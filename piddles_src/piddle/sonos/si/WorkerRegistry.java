@@ -0,0 +1,67 @@
+package piddle.sonos.si;
+
+import java.util.Arrays;
+
+/**
+ * Hands out dense int ids to QA team members and maps them back to display
+ * names.
+ * 
+ * Ids start at 0 and are never reused, so a retired member's id still names it
+ * in the responses it answered. Everything that tracks per worker state
+ * (ResponseLog, InvariantVerifier, MissedRequestAnalyzer) can index an array
+ * by id instead of hashing a string.
+ * 
+ * The names live in an array that grows by doubling, under a lock, which only
+ * happens when the team grows. Registering n members therefore copies O(n)
+ * names in all, rather than the whole array once per member, which made
+ * building a large team quadratic. The slots past size are never read: an id
+ * is only handed out after its slot is filled in, and the array is published
+ * again after every registration, so a reader that has the id sees the name.
+ * Looking a name up is a volatile read and an array access.
+ * 
+ * @author Scott
+ *
+ */
+public class WorkerRegistry {
+
+	private volatile String[] names = new String[16];
+	private volatile int size = 0;
+
+	/**
+	 * Registers a new member and returns its id.
+	 * 
+	 * @param name
+	 *            the display name. null for "QA Member <id>"
+	 * @return
+	 */
+	public synchronized int register(String name) {
+		String[] names = this.names;
+		int id = this.size;
+		if (id == names.length) {
+			names = Arrays.copyOf(names, 2 * id);
+		}
+		names[id] = name != null ? name : String.format("QA Member %s", String.valueOf(id));
+		this.names = names;
+		this.size = id + 1;
+		return id;
+	}
+
+	/**
+	 * The display name of the member with the given id.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public String getName(int id) {
+		return this.names[id];
+	}
+
+	/**
+	 * The number of ids handed out so far, retired members included.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return this.size;
+	}
+}